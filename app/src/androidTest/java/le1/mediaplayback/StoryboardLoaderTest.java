@@ -0,0 +1,235 @@
+package le1.mediaplayback;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link StoryboardLoader} against a storyboard spec and sprite sheets served by a local {@link MockWebServer}.
+ * Every tile of a sheet is filled with a color encoding its column in the red component and its row in the green one,
+ * far enough apart to survive the RGB_565 decoding
+ */
+@RunWith(AndroidJUnit4.class)
+public class StoryboardLoaderTest {
+    /**
+     * With 100 tiles over the video, a tile every second
+     */
+    private static final long DURATION = 100000;
+
+    private MockWebServer server;
+    private StoryboardLoader loader;
+
+    @Before
+    public void setUp() throws Exception {
+        final byte[] fullSheet = sheet(160, 90);
+        // the last sheet of a storyboard can be smaller
+        final byte[] smallSheet = sheet(80, 45);
+        server = new MockWebServer();
+        server.start();
+        // the loader picks the 160x90 level, the second one
+        final String spec = server.url("/").toString() + "sb/video/storyboard3_L$L/$N.jpg"
+                + "|48#27#100#10#10#0#default#sigh0|160#90#100#5#5#0#M$M#sigh1";
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath();
+                if (path.equals("/get_video_info?video_id=video"))
+                    return new MockResponse().setBody("status=ok&storyboard_spec=" + encode(spec));
+                if (!path.endsWith("?sigh=sigh1")) return new MockResponse().setResponseCode(403);
+                if (path.startsWith("/sb/video/storyboard3_L1/M3.jpg"))
+                    return new MockResponse().setBody(new Buffer().write(smallSheet));
+                if (path.startsWith("/sb/video/storyboard3_L1/"))
+                    return new MockResponse().setBody(new Buffer().write(fullSheet));
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loader = new StoryboardLoader(server.url("/get_video_info?video_id=").toString());
+                loader.setVideo("video", DURATION);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loader.release();
+            }
+        });
+        server.shutdown();
+    }
+
+    @Test
+    public void tileComesFromItsSheet() throws Exception {
+        // tile 30: second sheet, first column of the second row
+        Bitmap tile = loadTile(30500);
+        assertEquals("/get_video_info?video_id=video", server.takeRequest().getPath());
+        assertEquals("/sb/video/storyboard3_L1/M1.jpg?sigh=sigh1", server.takeRequest().getPath());
+        assertEquals(160, tile.getWidth());
+        assertEquals(90, tile.getHeight());
+        assertEquals(5, tileIndexOf(tile));
+
+        // last tile of the first sheet
+        assertEquals(24, tileIndexOf(loadTile(24000)));
+        assertEquals("/sb/video/storyboard3_L1/M0.jpg?sigh=sigh1", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void regionStaysInsideSmallerSheet() throws Exception {
+        // tile 99, the last one, in the bottom right corner of the small sheet
+        Bitmap tile = loadTile(DURATION);
+        server.takeRequest();
+        assertEquals("/sb/video/storyboard3_L1/M3.jpg?sigh=sigh1", server.takeRequest().getPath());
+        assertEquals(80, tile.getWidth());
+        assertEquals(45, tile.getHeight());
+        assertEquals(24, tileIndexOf(tile));
+    }
+
+    @Test
+    public void tilesAndSheetsAreReused() throws Exception {
+        Bitmap first = loadTile(1000);
+        assertSame(first, loadTile(1000));
+        // another tile of the same sheet is decoded from the sheet already downloaded
+        assertEquals(2, tileIndexOf(loadTile(2000)));
+        // the spec and a single sheet
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void videoWithoutStoryboardHasNoTiles() throws Exception {
+        final Bitmap[] result = new Bitmap[]{Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565)};
+        final CountDownLatch latch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loader.setVideo("other", DURATION);
+                loader.loadTile(1000, new StoryboardLoader.Callback() {
+                    @Override
+                    public void onTileLoaded(long position, Bitmap tile) {
+                        result[0] = tile;
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNull(result[0]);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void supersededRequestIsNotDelivered() throws Exception {
+        final List<Long> delivered = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StoryboardLoader.Callback callback = new StoryboardLoader.Callback() {
+                    @Override
+                    public void onTileLoaded(long position, Bitmap tile) {
+                        delivered.add(position);
+                        latch.countDown();
+                    }
+                };
+                loader.loadTile(1000, callback);
+                loader.loadTile(60000, callback);
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        // the first request would have been posted before the second one
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+        assertEquals(1, delivered.size());
+        assertEquals(60000L, (long) delivered.get(0));
+    }
+
+    /**
+     * @return The tile of a position, waiting for it to be loaded
+     */
+    private Bitmap loadTile(final long position) throws InterruptedException {
+        final Bitmap[] result = new Bitmap[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                loader.loadTile(position, new StoryboardLoader.Callback() {
+                    @Override
+                    public void onTileLoaded(long p, Bitmap tile) {
+                        result[0] = tile;
+                        latch.countDown();
+                    }
+                });
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertNotNull(result[0]);
+        return result[0];
+    }
+
+    /**
+     * @return The index in the sheet encoded in the color of a tile
+     */
+    private static int tileIndexOf(Bitmap tile) {
+        int color = tile.getPixel(tile.getWidth() / 2, tile.getHeight() / 2);
+        return Math.round(Color.red(color) / 50f) + 5 * Math.round(Color.green(color) / 50f);
+    }
+
+    /**
+     * @return A 5x5 png sprite sheet with tiles of the given size
+     */
+    private static byte[] sheet(int tileWidth, int tileHeight) {
+        Bitmap bitmap = Bitmap.createBitmap(tileWidth * 5, tileHeight * 5, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        for (int i = 0; i < 25; i++) {
+            paint.setColor(Color.rgb(i % 5 * 50, i / 5 * 50, 0));
+            int left = i % 5 * tileWidth;
+            int top = i / 5 * tileHeight;
+            canvas.drawRect(left, top, left + tileWidth, top + tileHeight, paint);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
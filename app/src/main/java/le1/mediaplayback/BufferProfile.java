@@ -0,0 +1,54 @@
+package le1.mediaplayback;
+
+/**
+ * How much media the player buffers ahead, and how much it needs before starting.
+ * Given to {@link MusicControl#prepareAndPlay(BufferProfile)}, it applies to that media and the ones queued after it
+ */
+public enum BufferProfile {
+    /**
+     * The ExoPlayer defaults
+     */
+    DEFAULT(15000, 30000, 2500, 5000, 0),
+    /**
+     * Starts as soon as a second is buffered, for fast connections
+     */
+    FAST_START(10000, 30000, 1000, 2500, 0),
+    /**
+     * Small buffer, also capped in bytes, for low RAM devices and audio only background play
+     */
+    LOW_MEMORY(5000, 10000, 1500, 3000, 6 * 1024 * 1024),
+    /**
+     * Buffers little ahead, so that less data is wasted when the user skips
+     */
+    DATA_SAVER(8000, 12000, 2500, 5000, 0);
+
+    /**
+     * The player always loads until this much is buffered
+     */
+    public final int minBufferMs;
+    /**
+     * The player never buffers more than this
+     */
+    public final int maxBufferMs;
+    /**
+     * Buffer needed to start playing after a prepare or a seek
+     */
+    public final int bufferForPlaybackMs;
+    /**
+     * Buffer needed to resume playing after running out of it
+     */
+    public final int bufferForPlaybackAfterRebufferMs;
+    /**
+     * Max memory used by the buffer, 0 to only limit it by duration
+     */
+    public final int maxBufferBytes;
+
+    BufferProfile(int minBufferMs, int maxBufferMs, int bufferForPlaybackMs, int bufferForPlaybackAfterRebufferMs,
+                  int maxBufferBytes) {
+        this.minBufferMs = minBufferMs;
+        this.maxBufferMs = maxBufferMs;
+        this.bufferForPlaybackMs = bufferForPlaybackMs;
+        this.bufferForPlaybackAfterRebufferMs = bufferForPlaybackAfterRebufferMs;
+        this.maxBufferBytes = maxBufferBytes;
+    }
+}
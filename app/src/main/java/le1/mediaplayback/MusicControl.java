@@ -4,18 +4,31 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.media.session.PlaybackState;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
+import android.arch.lifecycle.LifecycleOwner;
+
 import com.google.android.exoplayer2.ui.SimpleExoPlayerView;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import le1.mediaplayback.application.MediaPlaybackApplication;
+import le1.mediaplayback.callback.PlaybackError;
+import le1.mediaplayback.callback.PlaybackEventBus;
 import le1.mediaplayback.callback.PlaybackStateListener;
-import le1.mediaplayback.callback.PlaybackStateCompositeListener;
+import le1.mediaplayback.callback.PlaybackStatus;
 import le1.mediaplayback.service.MusicService;
 import le1.mediaplayback.service.PlayerManager;
 
@@ -25,12 +38,68 @@ import le1.mediaplayback.service.PlayerManager;
  */
 public class MusicControl {
     private static final String TAG = "LE1_MusicControl";
+
+    /**
+     * Receives the {@link PlaybackSnapshot}s, see {@link #subscribe(SnapshotSubscriber, Executor)}
+     */
+    public interface SnapshotSubscriber {
+        void onSnapshot(PlaybackSnapshot snapshot);
+    }
+
+    /**
+     * Returned by {@link #subscribe(SnapshotSubscriber, Executor)}
+     */
+    public interface Cancellable {
+        /**
+         * Stop receiving snapshots. Any snapshot not delivered yet is dropped
+         */
+        void cancel();
+    }
+
+    /**
+     * Custom action that appends the media ids in {@link #EXTRA_MEDIA_IDS} to the play queue
+     */
+    public static final String ACTION_ADD_QUEUE_ITEMS = "le1.mediaplayback.ADD_QUEUE_ITEMS";
+    public static final String EXTRA_MEDIA_IDS = "le1.mediaplayback.MEDIA_IDS";
+
+    /**
+     * Max number of media ids sent with a single {@link #ACTION_ADD_QUEUE_ITEMS},
+     * to stay well below the Binder transaction limit
+     */
+    private static final int ADD_QUEUE_ITEMS_CHUNK = 1000;
+
+    /**
+     * Custom action that starts buffering the media ids in {@link #EXTRA_MEDIA_IDS}, the most likely first,
+     * see {@link #warmUp(List)}
+     */
+    public static final String ACTION_WARM_UP = "le1.mediaplayback.WARM_UP";
+
+    /**
+     * Extra of {@link MediaControllerCompat.TransportControls#prepareFromMediaId(String, Bundle)}
+     * with the name of the {@link BufferProfile} to use
+     */
+    public static final String EXTRA_BUFFER_PROFILE = "le1.mediaplayback.BUFFER_PROFILE";
+
+    /**
+     * Custom action sent while the user drags the seek bar, to the position in {@link #EXTRA_POSITION}.
+     * The service throttles these, the drag must end with {@link #seekTo(long)}
+     */
+    public static final String ACTION_SCRUB_TO = "le1.mediaplayback.SCRUB_TO";
+    public static final String EXTRA_POSITION = "le1.mediaplayback.POSITION";
+
+    /**
+     * A call to {@link #mediaController}, see {@link #enqueue(Command)}
+     */
+    private interface Command {
+        void run(MediaControllerCompat controller);
+    }
+
     private Context context;
 
     /**
-     * A collection of all the {@link PlaybackStateListener} subscribed
+     * Dispatches playback events to every {@link PlaybackStateListener} subscribed
      */
-    private PlaybackStateCompositeListener compositeListener;
+    private final PlaybackEventBus eventBus = new PlaybackEventBus();
 
     /**
      * Used to connect with {@link MusicService}
@@ -41,7 +110,28 @@ public class MusicControl {
      * Used to actually control playback,
      * usable only after connecting with {@link #mediaBrowserCompat}
      */
-    private MediaControllerCompat mediaController;
+    private volatile MediaControllerCompat mediaController;
+
+    /**
+     * Commands issued before the connection with {@link MusicService} was up,
+     * run in order as soon as {@link #mediaController} is created. Guarded by itself
+     */
+    private final List<Command> pendingCommands = new ArrayList<>();
+
+    /**
+     * The last {@link PlaybackStateCompat} and {@link MediaMetadataCompat} published by {@link MusicService},
+     * read without asking the service, see {@link #getSnapshot()}
+     */
+    private volatile PlaybackSnapshot snapshot = PlaybackSnapshot.EMPTY;
+    private final SnapshotStream snapshotStream = new SnapshotStream();
+    private final Executor mainExecutor = new Executor() {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
 
     /**
      * Intent used to start and stop {@link MusicService}
@@ -49,34 +139,26 @@ public class MusicControl {
     private Intent musicServiceIntent;
 
     /**
-     * Forward any change in playback to {@link #compositeListener}
+     * Forward any change in playback to {@link #eventBus}
      */
     private MediaControllerCompat.Callback mediaControllerCallback = new MediaControllerCompat.Callback() {
         @Override
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
             super.onPlaybackStateChanged(state);
-            switch (state.getState()) {
-                case PlaybackStateCompat.STATE_PLAYING:
-                    compositeListener.onPlaying("playing");
-                    break;
-                case PlaybackStateCompat.STATE_BUFFERING:
-                    compositeListener.onLoading("loading");
-                    break;
-                case PlaybackStateCompat.STATE_PAUSED:
-                    compositeListener.onPaused("paused");
-                    break;
-                case PlaybackStateCompat.STATE_STOPPED:
-                    compositeListener.onStopped("stopped");
-                    break;
-                case PlaybackStateCompat.STATE_ERROR:
-                    compositeListener.onError("error");
-            }
+            publishSnapshot(PlaybackSnapshot.of(state, snapshot.metadata));
+            PlaybackStatus status = PlaybackStatus.of(state.getState());
+            if (status == null) return;
+            eventBus.dispatchState(status, state.getPosition());
+            if (status == PlaybackStatus.ERROR) eventBus.dispatchError(PlaybackError.of(state.getErrorCode()));
         }
 
         @Override
         public void onMetadataChanged(MediaMetadataCompat metadata) {
             super.onMetadataChanged(metadata);
-            compositeListener.onMetadataLoaded(metadata);
+            PlaybackSnapshot current = snapshot;
+            publishSnapshot(new PlaybackSnapshot(current.state, current.position, current.bufferedPosition,
+                    current.speed, current.updateTime, metadata, current.activeQueueItemId));
+            eventBus.dispatchMetadata(metadata);
         }
     };
 
@@ -90,9 +172,19 @@ public class MusicControl {
             try {
                 mediaController = new MediaControllerCompat(context, mediaBrowserCompat.getSessionToken());
                 mediaController.registerCallback(mediaControllerCallback);
+                publishSnapshot(PlaybackSnapshot.of(mediaController.getPlaybackState(), mediaController.getMetadata()));
             } catch (RemoteException e) {
                 e.printStackTrace();
+                return;
             }
+            runPendingCommands();
+        }
+
+        @Override
+        public void onConnectionSuspended() {
+            super.onConnectionSuspended();
+            // queue again until the service is back
+            mediaController = null;
         }
 
     };
@@ -106,7 +198,6 @@ public class MusicControl {
      */
     public MusicControl(Context context) {
         musicServiceIntent = new Intent(context.getApplicationContext(), MusicService.class);
-        compositeListener = new PlaybackStateCompositeListener();
         mediaBrowserCompat = new MediaBrowserCompat(context,
                 new ComponentName(context.getApplicationContext(), MusicService.class), connectionCallback, null);
         this.context = context;
@@ -120,12 +211,82 @@ public class MusicControl {
     }
 
     /**
-     * Add a listener that will react to playback events
+     * Unbind the view set with {@link #setPlayerView(SimpleExoPlayerView)}.
+     * Playback continues in audio only mode until a new view is set
+     */
+    public void clearPlayerView() {
+        PlayerManager.getInstance(context).clearPlayerView();
+    }
+
+    /**
+     * Add a listener that will react to playback events, called on the main thread.
+     * It must be removed with {@link #removeListener(PlaybackStateListener)}
      *
      * @param playbackListener The listener to add
      */
     public void addListener(PlaybackStateListener playbackListener) {
-        compositeListener.addListener(playbackListener);
+        eventBus.addListener(playbackListener);
+    }
+
+    /**
+     * Add a listener that will react to playback events, called on the given executor
+     *
+     * @param playbackListener The listener to add
+     * @param executor         Where the listener is called
+     */
+    public void addListener(PlaybackStateListener playbackListener, Executor executor) {
+        eventBus.addListener(playbackListener, executor);
+    }
+
+    /**
+     * Add a listener that will react to playback events until the owner is destroyed, called on the main thread
+     *
+     * @param owner            e.g. an activity, the listener is removed when it's destroyed
+     * @param playbackListener The listener to add
+     */
+    public void addListener(LifecycleOwner owner, PlaybackStateListener playbackListener) {
+        eventBus.addListener(owner, playbackListener);
+    }
+
+    /**
+     * @param playbackListener The listener to remove
+     */
+    public void removeListener(PlaybackStateListener playbackListener) {
+        eventBus.removeListener(playbackListener);
+    }
+
+    /**
+     * Receive a {@link PlaybackSnapshot} on the main thread every time the playback changes,
+     * starting with the current one
+     *
+     * @return Call {@link Cancellable#cancel()} to stop receiving them
+     */
+    public Cancellable subscribe(SnapshotSubscriber subscriber) {
+        return subscribe(subscriber, mainExecutor);
+    }
+
+    /**
+     * Receive a {@link PlaybackSnapshot} every time the playback changes, starting with the current one.
+     * A subscriber slower than the changes only receives the latest snapshot, never a backlog
+     *
+     * @param executor Where the subscriber is called
+     * @return Call {@link Cancellable#cancel()} to stop receiving them
+     */
+    public Cancellable subscribe(SnapshotSubscriber subscriber, Executor executor) {
+        return snapshotStream.subscribe(subscriber, executor, snapshot);
+    }
+
+    /**
+     * @return The latest snapshot of the playback, the same object given to the subscribers.
+     * Never communicates with {@link MusicService}
+     */
+    public PlaybackSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    private void publishSnapshot(PlaybackSnapshot snapshot) {
+        this.snapshot = snapshot;
+        snapshotStream.publish(snapshot);
     }
 
     /**
@@ -147,7 +308,11 @@ public class MusicControl {
      * finally, {@link Context#stopService(Intent)} kills the service
      */
     public void disconnect() {
-        mediaController.unregisterCallback(mediaControllerCallback);
+        synchronized (pendingCommands) {
+            pendingCommands.clear();
+        }
+        if (mediaController != null) mediaController.unregisterCallback(mediaControllerCallback);
+        mediaController = null;
         mediaBrowserCompat.disconnect();
         context.stopService(musicServiceIntent);
 
@@ -160,12 +325,168 @@ public class MusicControl {
         return mediaBrowserCompat.isConnected();
     }
 
+    /**
+     * Run a command right away if connected to {@link MusicService}, otherwise keep it
+     * until {@link MediaBrowserCompat.ConnectionCallback#onConnected()}.
+     * Commands always run in the order they are issued
+     */
+    private void enqueue(Command command) {
+        MediaControllerCompat controller;
+        synchronized (pendingCommands) {
+            controller = mediaController;
+            if (controller == null || !pendingCommands.isEmpty()) {
+                pendingCommands.add(command);
+                return;
+            }
+        }
+        command.run(controller);
+    }
 
     /**
-     * Prepare playback, load media and then start playing (as if called with {@link #play()})
+     * Run every command in {@link #pendingCommands}, including those added while running them
+     */
+    private void runPendingCommands() {
+        while (true) {
+            MediaControllerCompat controller;
+            Command command;
+            synchronized (pendingCommands) {
+                controller = mediaController;
+                if (controller == null || pendingCommands.isEmpty()) return;
+                command = pendingCommands.remove(0);
+            }
+            command.run(controller);
+        }
+    }
+
+
+    /**
+     * Prepare playback, load media and then start playing (as if called with {@link #play()}).
+     * Can be called before the connection is up: the service starts extracting the media
+     * as soon as it's created, while the connection is still being set up
      */
     public void prepareAndPlay() {
-        mediaController.getTransportControls().prepareFromMediaId("A2naW_PxI2M", null);
+        prepareAndPlay(null);
+    }
+
+    /**
+     * Same as {@link #prepareAndPlay()}, buffering as much as the profile says
+     *
+     * @param bufferProfile Used for this media and the ones queued after it,
+     *                      null to let the service choose according to the device
+     */
+    public void prepareAndPlay(BufferProfile bufferProfile) {
+        final String mediaId = "A2naW_PxI2M";
+        if (mediaController == null) {
+            context.startService(new Intent(musicServiceIntent).putExtra(MusicService.EXTRA_PREFETCH_MEDIA_ID, mediaId));
+        }
+        final Bundle extras = new Bundle();
+        if (bufferProfile != null) extras.putString(EXTRA_BUFFER_PROFILE, bufferProfile.name());
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().prepareFromMediaId(mediaId, extras);
+            }
+        });
+    }
+
+    /**
+     * Append a media at the end of the play queue.
+     * It starts loading while the previous one plays, so that there is no gap between them
+     *
+     * @param mediaId The YouTube id of the media
+     */
+    public void addToQueue(final String mediaId) {
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.addQueueItem(new MediaDescriptionCompat.Builder().setMediaId(mediaId).build());
+            }
+        });
+    }
+
+    /**
+     * Append many media at the end of the play queue, e.g. a whole playlist
+     *
+     * @param mediaIds The YouTube ids of the media, in order
+     */
+    public void addToQueue(List<String> mediaIds) {
+        for (int from = 0; from < mediaIds.size(); from += ADD_QUEUE_ITEMS_CHUNK) {
+            int to = Math.min(mediaIds.size(), from + ADD_QUEUE_ITEMS_CHUNK);
+            final Bundle extras = new Bundle();
+            extras.putStringArrayList(EXTRA_MEDIA_IDS, new ArrayList<>(mediaIds.subList(from, to)));
+            enqueue(new Command() {
+                @Override
+                public void run(MediaControllerCompat controller) {
+                    controller.getTransportControls().sendCustomAction(ACTION_ADD_QUEUE_ITEMS, extras);
+                }
+            });
+        }
+    }
+
+    /**
+     * Start buffering the media the user is likely to pick next, e.g. the "up next" and recommended videos,
+     * so that they start instantly if chosen. Only the first few are buffered, older ones are dropped
+     *
+     * @param mediaIds The YouTube ids of the media, the most likely first
+     */
+    public void warmUp(List<String> mediaIds) {
+        final Bundle extras = new Bundle();
+        extras.putStringArrayList(EXTRA_MEDIA_IDS, new ArrayList<>(mediaIds));
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().sendCustomAction(ACTION_WARM_UP, extras);
+            }
+        });
+    }
+
+    /**
+     * @param shuffle Whether to play the queue in random order
+     */
+    public void setShuffle(boolean shuffle) {
+        final int shuffleMode = shuffle ? PlaybackStateCompat.SHUFFLE_MODE_ALL : PlaybackStateCompat.SHUFFLE_MODE_NONE;
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().setShuffleMode(shuffleMode);
+            }
+        });
+    }
+
+    /**
+     * Play the next media of the queue
+     */
+    public void skipToNext() {
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().skipToNext();
+            }
+        });
+    }
+
+    /**
+     * Play the previous media of the queue, or restart the current one if it has been playing for a while
+     */
+    public void skipToPrevious() {
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().skipToPrevious();
+            }
+        });
+    }
+
+    /**
+     * @param queueItemId The {@link MediaSessionCompat.QueueItem#getQueueId()} of the media to play
+     */
+    public void skipToQueueItem(final long queueItemId) {
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().skipToQueueItem(queueItemId);
+            }
+        });
     }
 
     /**
@@ -173,7 +494,12 @@ public class MusicControl {
      * Only works if song was prepared with {@link #prepareAndPlay()}
      */
     public void play() {
-        mediaController.getTransportControls().play();
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().play();
+            }
+        });
     }
 
     /**
@@ -181,7 +507,12 @@ public class MusicControl {
      * Only works if song was prepared with {@link #prepareAndPlay()}
      */
     public void pause() {
-        mediaController.getTransportControls().pause();
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().pause();
+            }
+        });
     }
 
     /**
@@ -189,44 +520,77 @@ public class MusicControl {
      * Can be called at any time
      */
     public void stop() {
-        mediaController.getTransportControls().stop();
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().stop();
+            }
+        });
     }
 
 
     /**
+     * It does not communicate with {@link MusicService}, so it's cheap enough to be called every frame
+     *
      * @return the current playback position in milliseconds
+     * @see PlaybackSnapshot#getCurrentPosition()
      */
-    public int getCurrentPosition() {
-        return PlayerManager.getInstance(context).getCurrentPosition()*1000;
+    public long getCurrentPosition() {
+        return snapshot.getCurrentPosition();
     }
 
     /**
      * @return the current {@link MediaMetadataCompat} of the current playback.
-     * May change at any moment
+     * May change at any moment, use {@link #getSnapshot()} to read it together with the state
      */
     public MediaMetadataCompat getMetadata(){
-        return mediaController.getMetadata();
+        return snapshot.metadata;
     }
 
+    /**
+     * @return the current {@link PlaybackStateCompat} state.
+     * May change at any moment, use {@link #getSnapshot()} to read it together with the metadata
+     */
     public int getPlaybackState(){
-        return mediaController.getPlaybackState().getState();
+        return snapshot.state;
     }
 
     /**
-     * Seek to a new position in time
+     * Seek to a new position in time.
+     * {@link #getCurrentPosition()} reflects the new position right away
      * @param progress Number of milliseconds where to start playback from
      */
-    public void seekTo(int progress) {
-        mediaController.getTransportControls().seekTo(progress/1000);
+    public void seekTo(final long progress) {
+        publishSnapshot(snapshot.withPosition(progress));
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().seekTo(progress);
+            }
+        });
+    }
+
+    /**
+     * Preview a position while the user is dragging the seek bar. Unlike {@link #seekTo(long)}
+     * it may land a bit off and it's dropped if a newer one comes soon after
+     * @param progress Number of milliseconds to preview
+     */
+    public void scrubTo(long progress) {
+        final Bundle extras = new Bundle();
+        extras.putLong(EXTRA_POSITION, progress);
+        enqueue(new Command() {
+            @Override
+            public void run(MediaControllerCompat controller) {
+                controller.getTransportControls().sendCustomAction(ACTION_SCRUB_TO, extras);
+            }
+        });
     }
 
     /**
      * Toggle playing and paused
      */
     public void playOrPause() {
-       if (mediaController.getPlaybackState().getState()== PlaybackStateCompat.STATE_PLAYING)
-           mediaController.getTransportControls().pause();
-        else
-            mediaController.getTransportControls().play();
+        if (snapshot.state == PlaybackStateCompat.STATE_PLAYING) pause();
+        else play();
     }
 }
@@ -0,0 +1,98 @@
+package le1.mediaplayback;
+
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Immutable view of the whole playback at a point in time: state, position, buffer, speed, metadata and queue item.
+ * Every field comes from the same update, so they are always consistent with each other.
+ * See {@link MusicControl#getSnapshot()} and {@link MusicControl#subscribe(MusicControl.SnapshotSubscriber)}
+ */
+public final class PlaybackSnapshot {
+    static final PlaybackSnapshot EMPTY = new PlaybackSnapshot(PlaybackStateCompat.STATE_NONE, -1, -1, 0f,
+            0, null, MediaSessionCompat.QueueItem.UNKNOWN_ID);
+
+    /**
+     * One of the {@link PlaybackStateCompat} states
+     */
+    public final int state;
+    /**
+     * Position in milliseconds at {@link #updateTime}, -1 if unknown
+     */
+    public final long position;
+    /**
+     * Position in milliseconds up to which the media is buffered, -1 if unknown
+     */
+    public final long bufferedPosition;
+    public final float speed;
+    /**
+     * {@link SystemClock#elapsedRealtime()} when {@link #position} was measured
+     */
+    public final long updateTime;
+    /**
+     * Can be null before anything is prepared
+     */
+    public final MediaMetadataCompat metadata;
+    /**
+     * The {@link MediaSessionCompat.QueueItem#getQueueId()} of the item playing
+     */
+    public final long activeQueueItemId;
+
+    PlaybackSnapshot(int state, long position, long bufferedPosition, float speed, long updateTime,
+                     MediaMetadataCompat metadata, long activeQueueItemId) {
+        this.state = state;
+        this.position = position;
+        this.bufferedPosition = bufferedPosition;
+        this.speed = speed;
+        this.updateTime = updateTime;
+        this.metadata = metadata;
+        this.activeQueueItemId = activeQueueItemId;
+    }
+
+    /**
+     * @param state    The last state published by the service, can be null
+     * @param metadata The last metadata published by the service, can be null
+     */
+    static PlaybackSnapshot of(PlaybackStateCompat state, MediaMetadataCompat metadata) {
+        if (state == null) {
+            return new PlaybackSnapshot(PlaybackStateCompat.STATE_NONE, -1, -1, 0f, 0, metadata,
+                    MediaSessionCompat.QueueItem.UNKNOWN_ID);
+        }
+        return new PlaybackSnapshot(state.getState(), state.getPosition(), state.getBufferedPosition(),
+                state.getPlaybackSpeed(), state.getLastPositionUpdateTime(), metadata, state.getActiveQueueItemId());
+    }
+
+    /**
+     * @return A copy moved to another position, measured now
+     */
+    PlaybackSnapshot withPosition(long position) {
+        return new PlaybackSnapshot(state, position, bufferedPosition, speed, SystemClock.elapsedRealtime(),
+                metadata, activeQueueItemId);
+    }
+
+    /**
+     * @return Duration of the media in milliseconds, 0 if unknown
+     */
+    public long getDuration() {
+        return metadata == null ? 0 : metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+    }
+
+    /**
+     * Extrapolates the position from {@link #position}: plus the time elapsed since {@link #updateTime},
+     * multiplied by the {@link #speed}. Cheap enough to be called every frame
+     *
+     * @return the current playback position in milliseconds
+     */
+    public long getCurrentPosition() {
+        if (position < 0) return 0;
+        long current = position;
+        if (state == PlaybackStateCompat.STATE_PLAYING) {
+            current += (long) ((SystemClock.elapsedRealtime() - updateTime) * speed);
+        }
+        long duration = getDuration();
+        if (duration > 0 && current > duration) current = duration;
+        return current;
+    }
+}
@@ -1,7 +1,7 @@
 package le1.mediaplayback;
 
 import android.content.Context;
-import android.os.Build;
+import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -16,13 +16,16 @@ import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
 import le1.mediaplayback.application.MediaPlaybackApplication;
+import le1.mediaplayback.callback.PlaybackError;
 import le1.mediaplayback.callback.PlaybackStateListener;
+import le1.mediaplayback.callback.PlaybackStatus;
 
 /**
  * A {@link View} that mimics the player overlay of youtube.
@@ -37,9 +40,20 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
     private ProgressBar loadingIcon;
     private SeekBar seekbar;
     private ImageButton playPauseButton;
+    private ImageView scrubPreview;
+    private String storyboardInfoUrl = StoryboardLoader.DEFAULT_INFO_URL;
+    /**
+     * Only exists while attached, it owns a thread and the decoders of the sheets
+     */
+    private StoryboardLoader storyboardLoader;
 
     private MusicControl musicControl;
+    private ProgressRenderer progressRenderer;
     private boolean isUiShown;
+    /**
+     * The state last given to {@link #updateUi(int, MediaMetadataCompat)}
+     */
+    private int playbackState = PlaybackStateCompat.STATE_NONE;
 
     final Handler autoHideHandler = new Handler();
     Runnable autoHideRunnable = new Runnable() {
@@ -61,12 +75,11 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
 
     /**
      * Inflates the {@link R.layout#player_overlay} layout used for the ui.
-     * Start an {@link Handler} that updates the {@link #seekbar} every second.
+     * The {@link #seekbar} is updated by a {@link ProgressRenderer}, see {@link #updateProgressRenderer()}
      */
     public PlayerOverlayView(final Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
         musicControl = ((MediaPlaybackApplication) context.getApplicationContext()).getMusicControl();
-        musicControl.addListener(this);
 
         LayoutInflater layoutInflater = LayoutInflater.from(context);
         View view = layoutInflater.inflate(R.layout.player_overlay, this);
@@ -78,7 +91,9 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
         seekbar = view.findViewById(R.id.seek_bar);
 
         seekbar.setOnSeekBarChangeListener(this);
+        progressRenderer = new ProgressRenderer(musicControl, seekbar, currentTimeView);
 
+        scrubPreview = view.findViewById(R.id.scrub_preview);
         playPauseButton = view.findViewById(R.id.play_pause);
         playPauseButton.setOnClickListener(new OnClickListener() {
             @Override
@@ -86,20 +101,6 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
                 musicControl.playOrPause();
             }
         });
-
-
-        final Handler handler = new Handler();
-        handler.postDelayed(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        if (isAttachedToWindow()) {
-                            handler.postDelayed(this, 1000);
-                            seekbar.setProgress(musicControl.getCurrentPosition());
-                            currentTimeView.setText(formatMilliseconds(musicControl.getCurrentPosition()));
-                        }
-                    }
-                }, 1000);
     }
 
 
@@ -117,10 +118,12 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
      */
     public void updateUi(int playbackState, MediaMetadataCompat metadata) {
         isUiShown = true;
+        this.playbackState = playbackState;
         if (metadata != null) {
+            setStoryboardVideo(metadata);
             seekbar.setMax((int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
             titleView.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
-            totalTimeView.setText(formatMilliseconds((int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)));
+            totalTimeView.setText(formatMilliseconds(metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)));
         }
         switch (playbackState) {
             case PlaybackStateCompat.STATE_BUFFERING:
@@ -183,6 +186,8 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
 
         }
 
+        updateProgressRenderer();
+
         // If the handler it's already started, stop it and restart it,
         // so that the runnable it's called only after the last call to this method
         autoHideHandler.removeCallbacks(autoHideRunnable);
@@ -201,10 +206,107 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
         seekbar.setVisibility(GONE);
         currentTimeView.setVisibility(GONE);
         totalTimeView.setVisibility(GONE);
+        updateProgressRenderer();
     }
 
+    /**
+     * Run the {@link #progressRenderer} only while the progress can be seen and moves:
+     * ui shown, view attached and visible, playback playing.
+     * Otherwise the position is drawn once
+     */
+    private void updateProgressRenderer() {
+        boolean visible = isUiShown && isAttachedToWindow() && isShown();
+        if (visible && playbackState == PlaybackStateCompat.STATE_PLAYING) {
+            progressRenderer.start();
+        } else {
+            progressRenderer.stop();
+            if (visible) progressRenderer.renderOnce();
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        if (progressRenderer != null) updateProgressRenderer();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (progressRenderer != null) updateProgressRenderer();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        musicControl.removeListener(this);
+        progressRenderer.stop();
+        if (storyboardLoader != null) {
+            storyboardLoader.release();
+            storyboardLoader = null;
+        }
+        scrubPreview.setVisibility(GONE);
+    }
+
+    /**
+     * Use another server for the storyboards shown while scrubbing, e.g. a local one
+     *
+     * @param infoUrl Where the storyboard spec of a video is read from, see {@link StoryboardLoader#DEFAULT_INFO_URL}
+     */
+    public void setStoryboardInfoUrl(String infoUrl) {
+        storyboardInfoUrl = infoUrl;
+        if (storyboardLoader == null) return;
+        storyboardLoader.release();
+        createStoryboardLoader();
+    }
 
     /**
+     * Create the {@link #storyboardLoader} for the current video, if any
+     */
+    private void createStoryboardLoader() {
+        storyboardLoader = new StoryboardLoader(storyboardInfoUrl);
+        MediaMetadataCompat metadata = musicControl.isConnected() ? musicControl.getMetadata() : null;
+        if (metadata != null) setStoryboardVideo(metadata);
+    }
+
+    private void setStoryboardVideo(MediaMetadataCompat metadata) {
+        if (storyboardLoader == null) return;
+        storyboardLoader.setVideo(metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID),
+                metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+    }
+
+    /**
+     * Shows a storyboard tile above the thumb of the {@link #seekbar}
+     */
+    private final StoryboardLoader.Callback storyboardCallback = new StoryboardLoader.Callback() {
+        @Override
+        public void onTileLoaded(long position, Bitmap tile) {
+            if (tile == null) {
+                scrubPreview.setVisibility(GONE);
+                return;
+            }
+            scrubPreview.setImageBitmap(tile);
+            scrubPreview.setVisibility(VISIBLE);
+            positionScrubPreview();
+        }
+    };
+
+    /**
+     * Center {@link #scrubPreview} on the thumb, without going out of this view
+     */
+    private void positionScrubPreview() {
+        if (seekbar.getMax() <= 0) return;
+        int trackWidth = seekbar.getWidth() - seekbar.getPaddingLeft() - seekbar.getPaddingRight();
+        float thumbX = seekbar.getLeft() + seekbar.getPaddingLeft()
+                + trackWidth * (float) seekbar.getProgress() / seekbar.getMax();
+        float x = thumbX - scrubPreview.getWidth() / 2f;
+        scrubPreview.setTranslationX(Math.max(0, Math.min(getWidth() - scrubPreview.getWidth(), x)));
+    }
+
+
+    /**
+     * Listens to playback events and loads storyboards only while attached,
+     * so that a view that's gone (e.g. after a rotation) is never leaked.
      * Restores the {@link #seekbar} and the correct view state
      * as soon as this view is visible.
      *
@@ -213,11 +315,10 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
+        musicControl.addListener(this);
+        createStoryboardLoader();
         if (musicControl.isConnected()) {
-            if (isUiShown) {
-                updateUi(musicControl.getPlaybackState(), musicControl.getMetadata());
-                seekbar.setProgress(musicControl.getCurrentPosition());
-            }
+            if (isUiShown) updateUi(musicControl.getPlaybackState(), musicControl.getMetadata());
         }
     }
 
@@ -234,39 +335,45 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
     }
 
     /**
-     * Converts milliseconds to a human readable string formatted as mm:ss
+     * Converts milliseconds to a human readable string formatted as mm:ss or h:mm:ss
      *
      * @param time the number of milliseconds to convert
      * @return a human readable timestamp
+     * @see ProgressRenderer#formatTime(long, char[])
      */
-    private String formatMilliseconds(int time) {
-        time = time / 1000;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            return String.format(this.getResources().getConfiguration().getLocales().get(0),
-                    "%02d:%02d", time / 60, time % 60);
-        } else {
-            //noinspection deprecation
-            return String.format(this.getResources().getConfiguration().locale,
-                    "%02d:%02d", time / 60, time % 60);
-        }
+    private String formatMilliseconds(long time) {
+        char[] chars = new char[8];
+        return new String(chars, 0, ProgressRenderer.formatTime(time, chars));
     }
 
 
     @Override
     public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+        if (!fromUser) return;
+        progressRenderer.renderScrub(progress);
+        if (storyboardLoader != null) storyboardLoader.loadTile(progress, storyboardCallback);
+        positionScrubPreview();
+        musicControl.scrubTo(progress);
+        // keep the controls visible while dragging
+        autoHideHandler.removeCallbacks(autoHideRunnable);
     }
 
     @Override
     public void onStartTrackingTouch(SeekBar seekBar) {
-
+        progressRenderer.setTracking(true);
+        if (storyboardLoader != null) storyboardLoader.prefetch(seekbar.getProgress());
     }
 
     /**
-     * Calls {@link MusicControl#seekTo(int)} only when user releases the finger
+     * Calls {@link MusicControl#seekTo(long)}, the exact seek, when user releases the finger.
+     * While dragging only {@link MusicControl#scrubTo(long)} previews are sent
      */
     @Override
     public void onStopTrackingTouch(SeekBar seekBar) {
         Log.d(TAG, "onStopTrackingTouch: " + seekbar.getProgress());
+        progressRenderer.setTracking(false);
+        scrubPreview.setVisibility(GONE);
+        autoHideHandler.postDelayed(autoHideRunnable, autoHideMs);
         musicControl.seekTo(seekbar.getProgress());
     }
 
@@ -284,28 +391,16 @@ public class PlayerOverlayView extends RelativeLayout implements PlaybackStateLi
      * calls {@link #updateUi(int, MediaMetadataCompat)} with the appropriate {@link PlaybackStateCompat} state.
      */
     @Override
-    public void onLoading(String message) {
-        updateUi(PlaybackStateCompat.STATE_BUFFERING, musicControl.getMetadata());
-    }
-
-    @Override
-    public void onPaused(String message) {
-        updateUi(PlaybackStateCompat.STATE_PAUSED, musicControl.getMetadata());
-    }
-
-    @Override
-    public void onPlaying(String message) {
-        updateUi(PlaybackStateCompat.STATE_PLAYING, musicControl.getMetadata());
-    }
-
-    @Override
-    public void onStopped(String message) {
-        updateUi(PlaybackStateCompat.STATE_STOPPED, musicControl.getMetadata());
+    public void onStateChanged(PlaybackStatus status, long position) {
+        updateUi(status.toPlaybackState(), musicControl.getMetadata());
     }
 
+    /**
+     * The ui already shows the error, see {@link #onStateChanged(PlaybackStatus, long)}
+     */
     @Override
-    public void onError(String message) {
-        updateUi(PlaybackStateCompat.STATE_ERROR, musicControl.getMetadata());
+    public void onError(PlaybackError cause) {
+        Log.d(TAG, "onError: " + cause);
     }
 
 
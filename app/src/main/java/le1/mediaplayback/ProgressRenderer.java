@@ -0,0 +1,123 @@
+package le1.mediaplayback;
+
+import android.view.Choreographer;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+/**
+ * Draws the playback position on a {@link SeekBar} and a {@link TextView}, once per frame.
+ * <p>
+ * The position is extrapolated by {@link MusicControl#getCurrentPosition()}, so a frame costs no IPC,
+ * and the time is formatted in a reused char array, so a frame allocates nothing.
+ * The text is only set when the displayed second changes
+ */
+class ProgressRenderer implements Choreographer.FrameCallback {
+    /**
+     * Fits "hh:mm:ss"
+     */
+    private static final int MAX_TIME_LENGTH = 8;
+
+    private final MusicControl musicControl;
+    private final SeekBar seekbar;
+    private final TextView timeView;
+    private final Choreographer choreographer = Choreographer.getInstance();
+    private final char[] timeChars = new char[MAX_TIME_LENGTH];
+
+    private boolean running;
+    /**
+     * Set while the user drags the {@link #seekbar}, so that its thumb is not moved under the finger
+     */
+    private boolean tracking;
+    private long lastSecond = -1;
+
+    /**
+     * Must be created on the main thread
+     */
+    ProgressRenderer(MusicControl musicControl, SeekBar seekbar, TextView timeView) {
+        this.musicControl = musicControl;
+        this.seekbar = seekbar;
+        this.timeView = timeView;
+    }
+
+    /**
+     * Draw the position on every frame until {@link #stop()}
+     */
+    void start() {
+        if (running) return;
+        running = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    void stop() {
+        if (!running) return;
+        running = false;
+        choreographer.removeFrameCallback(this);
+    }
+
+    /**
+     * Draw the current position once, e.g. while paused
+     */
+    void renderOnce() {
+        render();
+    }
+
+    void setTracking(boolean tracking) {
+        this.tracking = tracking;
+    }
+
+    /**
+     * Show the position under the finger while {@link #setTracking(boolean) tracking}
+     */
+    void renderScrub(long position) {
+        long second = position / 1000;
+        if (second == lastSecond) return;
+        lastSecond = second;
+        timeView.setText(timeChars, 0, formatTime(position, timeChars));
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        render();
+        choreographer.postFrameCallback(this);
+    }
+
+    private void render() {
+        // the time shows the finger position while dragging
+        if (tracking) return;
+        long position = musicControl.getCurrentPosition();
+        seekbar.setProgress((int) position);
+
+        long second = position / 1000;
+        if (second == lastSecond) return;
+        lastSecond = second;
+        timeView.setText(timeChars, 0, formatTime(position, timeChars));
+    }
+
+    /**
+     * Write a time as mm:ss, or h:mm:ss if longer than an hour
+     *
+     * @param millis The time in milliseconds
+     * @param out    Where to write, at least 8 chars long
+     * @return The number of chars written
+     */
+    static int formatTime(long millis, char[] out) {
+        long seconds = Math.max(0, millis / 1000);
+        long hours = seconds / 3600;
+        int minutes = (int) (seconds / 60 % 60);
+        int secs = (int) (seconds % 60);
+
+        int length = 0;
+        if (hours > 0) {
+            if (hours >= 10) out[length++] = (char) ('0' + hours / 10 % 10);
+            out[length++] = (char) ('0' + hours % 10);
+            out[length++] = ':';
+        }
+        out[length++] = (char) ('0' + minutes / 10);
+        out[length++] = (char) ('0' + minutes % 10);
+        out[length++] = ':';
+        out[length++] = (char) ('0' + secs / 10);
+        out[length++] = (char) ('0' + secs % 10);
+        return length;
+    }
+}
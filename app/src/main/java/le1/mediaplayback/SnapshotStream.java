@@ -0,0 +1,71 @@
+package le1.mediaplayback;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers {@link PlaybackSnapshot}s to subscribers, each on its own executor, conflating:
+ * a subscriber slower than the updates skips the intermediate snapshots and receives the latest one,
+ * at most one delivery per subscriber is ever queued on its executor
+ */
+class SnapshotStream {
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * A subscriber and its pending snapshot
+     */
+    class Subscription implements MusicControl.Cancellable, Runnable {
+        private final MusicControl.SnapshotSubscriber subscriber;
+        private final Executor executor;
+        /**
+         * The latest snapshot not delivered yet, null if none
+         */
+        private final AtomicReference<PlaybackSnapshot> pending = new AtomicReference<>();
+        /**
+         * Whether a delivery is queued on {@link #executor}
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        Subscription(MusicControl.SnapshotSubscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        void offer(PlaybackSnapshot snapshot) {
+            // replaces the one not delivered yet, if any
+            pending.set(snapshot);
+            if (scheduled.compareAndSet(false, true)) executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            PlaybackSnapshot snapshot = pending.getAndSet(null);
+            if (snapshot != null && !cancelled) subscriber.onSnapshot(snapshot);
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+    }
+
+    /**
+     * @param current Delivered right away, so that subscribers don't wait for the next change
+     */
+    MusicControl.Cancellable subscribe(MusicControl.SnapshotSubscriber subscriber, Executor executor, PlaybackSnapshot current) {
+        Subscription subscription = new Subscription(subscriber, executor);
+        subscriptions.add(subscription);
+        subscription.offer(current);
+        return subscription;
+    }
+
+    void publish(PlaybackSnapshot snapshot) {
+        for (Subscription subscription : subscriptions) subscription.offer(snapshot);
+    }
+}
@@ -0,0 +1,307 @@
+package le1.mediaplayback;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the preview thumbnails shown while scrubbing, from the storyboard of a YouTube video.
+ * <p>
+ * A storyboard is a series of sprite sheets, each one a grid of tiles taken at a fixed interval.
+ * Its layout and the signature of its sheets come from the storyboard spec in the video info, see {@link StoryboardSpec};
+ * videos without one get no tiles.
+ * Only the region of the tile needed is decoded, with a {@link BitmapRegionDecoder} kept per sheet;
+ * decoded tiles are kept in an LRU and the sheets around the current position are prefetched.
+ * <p>
+ * The video info url is injectable, so that the spec and the sheets can be served by a local HTTP server.
+ * Must be used on the main thread
+ */
+class StoryboardLoader {
+    private static final String TAG = "LE1_StoryboardLoader";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Where YouTube serves the video info holding the storyboard spec, followed by the video id
+     */
+    static final String DEFAULT_INFO_URL = "https://www.youtube.com/get_video_info?video_id=";
+
+    private static final int TILE_CACHE_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_SHEET_DECODERS = 3;
+    private static final int TIMEOUT_MS = 10000;
+
+    /**
+     * Receives a tile on the main thread
+     */
+    interface Callback {
+        /**
+         * @param tile null if the storyboard could not be loaded
+         */
+        void onTileLoaded(long position, Bitmap tile);
+    }
+
+    private final String infoUrl;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final LruCache<String, Bitmap> tiles = new LruCache<String, Bitmap>(TILE_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    /**
+     * Decoders of the sheets loaded, by url. Only used on {@link #executor}
+     */
+    private final LruCache<String, BitmapRegionDecoder> sheets = new LruCache<String, BitmapRegionDecoder>(MAX_SHEET_DECODERS) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, BitmapRegionDecoder oldValue, BitmapRegionDecoder newValue) {
+            oldValue.recycle();
+        }
+    };
+
+    /**
+     * Sheets that failed to load for the current video, not requested again. Only used on {@link #executor}
+     */
+    private final Set<String> failedSheets = new HashSet<>();
+
+    /**
+     * The video {@link #loadedSpec} was loaded for and its storyboard, null if it has none.
+     * Only used on {@link #executor}
+     */
+    private String specVideoId;
+    private StoryboardSpec loadedSpec;
+
+    private String videoId;
+    private long duration;
+    /**
+     * The storyboard of {@link #videoId} once loaded, gives the tile of a position without going to the {@link #executor}
+     */
+    private StoryboardSpec spec;
+    /**
+     * Whether {@link #spec} was loaded, so that a null one means the video has no storyboard
+     */
+    private boolean specLoaded;
+    private volatile boolean released;
+    /**
+     * The key of the last tile requested, older requests are not delivered
+     */
+    private volatile String requestedKey;
+
+    /**
+     * @param infoUrl The url the video id is appended to, to get the storyboard spec. See {@link #DEFAULT_INFO_URL}
+     */
+    StoryboardLoader(String infoUrl) {
+        this.infoUrl = infoUrl;
+    }
+
+    /**
+     * Set the video the tiles are taken from
+     *
+     * @param videoId  The YouTube id of the video
+     * @param duration The duration of the video in milliseconds
+     */
+    void setVideo(String videoId, long duration) {
+        if (videoId == null ? this.videoId == null : videoId.equals(this.videoId)) {
+            this.duration = duration;
+            return;
+        }
+        this.videoId = videoId;
+        this.duration = duration;
+        spec = null;
+        specLoaded = false;
+        requestedKey = null;
+        tiles.evictAll();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sheets.evictAll();
+                failedSheets.clear();
+            }
+        });
+    }
+
+    /**
+     * Load the tile of a position. Only the last requested tile is delivered
+     *
+     * @param position The position in milliseconds
+     * @param callback Called on the main thread, unless another tile is requested in the meantime
+     */
+    void loadTile(final long position, final Callback callback) {
+        if (videoId == null || duration <= 0 || specLoaded && spec == null) return;
+        // until the spec is loaded every position is a request of its own
+        final String key = spec == null ? videoId + "@" + position : tileKey(spec, spec.tileOf(position, duration));
+        Bitmap cached = tiles.get(key);
+        if (cached != null) {
+            requestedKey = key;
+            callback.onTileLoaded(position, cached);
+            return;
+        }
+        if (key.equals(requestedKey)) return;
+        requestedKey = key;
+
+        final String videoId = this.videoId;
+        final long duration = this.duration;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // skip the tiles requested while this one was waiting
+                if (!key.equals(requestedKey)) return;
+                final StoryboardSpec spec = getSpec(videoId);
+                final int tile = spec == null ? -1 : spec.tileOf(position, duration);
+                final Bitmap bitmap = spec == null ? null : decodeTile(spec, tile);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (released || !videoId.equals(StoryboardLoader.this.videoId)) return;
+                        StoryboardLoader.this.spec = spec;
+                        specLoaded = true;
+                        if (bitmap != null) tiles.put(tileKey(spec, tile), bitmap);
+                        if (key.equals(requestedKey)) callback.onTileLoaded(position, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Load in background the sheet of a position and the ones right before and after it
+     *
+     * @param position The position in milliseconds
+     */
+    void prefetch(final long position) {
+        if (videoId == null || duration <= 0 || specLoaded && spec == null) return;
+        final String videoId = this.videoId;
+        final long duration = this.duration;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StoryboardSpec spec = getSpec(videoId);
+                if (spec == null) return;
+                int sheet = spec.tileOf(position, duration) / spec.getTilesPerSheet();
+                int lastSheet = (spec.count - 1) / spec.getTilesPerSheet();
+                for (int s = Math.max(0, sheet - 1); s <= Math.min(lastSheet, sheet + 1) && !released; s++) {
+                    getSheet(spec.sheetUrl(s));
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop loading and recycle the decoders of the sheets. Tiles already delivered stay valid
+     */
+    void release() {
+        if (released) return;
+        released = true;
+        requestedKey = null;
+        tiles.evictAll();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                sheets.evictAll();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private static String tileKey(StoryboardSpec spec, int tile) {
+        return spec.sheetUrl(tile / spec.getTilesPerSheet()) + "#" + tile;
+    }
+
+    /**
+     * Runs on {@link #executor}
+     *
+     * @return The storyboard of a video, downloading its spec if needed. Null if it has none
+     */
+    private StoryboardSpec getSpec(String videoId) {
+        if (videoId.equals(specVideoId)) return loadedSpec;
+        specVideoId = videoId;
+        byte[] data = released ? null : download(infoUrl + videoId);
+        loadedSpec = data == null ? null : StoryboardSpec.fromVideoInfo(new String(data, UTF_8));
+        if (loadedSpec == null) Log.w(TAG, "getSpec: no storyboard for " + videoId);
+        return loadedSpec;
+    }
+
+    /**
+     * Runs on {@link #executor}
+     */
+    private Bitmap decodeTile(StoryboardSpec spec, int tile) {
+        BitmapRegionDecoder decoder = getSheet(spec.sheetUrl(tile / spec.getTilesPerSheet()));
+        if (decoder == null) return null;
+        int tileInSheet = tile % spec.getTilesPerSheet();
+        // the last sheet can be smaller than the full grid
+        int tileWidth = Math.min(spec.tileWidth, decoder.getWidth() / spec.columns);
+        int tileHeight = Math.min(spec.tileHeight, decoder.getHeight() / spec.rows);
+        int left = tileInSheet % spec.columns * tileWidth;
+        int top = tileInSheet / spec.columns * tileHeight;
+        Rect region = new Rect(left, top, Math.min(left + tileWidth, decoder.getWidth()),
+                Math.min(top + tileHeight, decoder.getHeight()));
+        if (region.isEmpty()) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return decoder.decodeRegion(region, options);
+    }
+
+    /**
+     * Runs on {@link #executor}
+     *
+     * @return The decoder of a sheet, downloading it if needed. Null if it can't be loaded
+     */
+    private BitmapRegionDecoder getSheet(String sheetUrl) {
+        BitmapRegionDecoder decoder = sheets.get(sheetUrl);
+        if (decoder != null || failedSheets.contains(sheetUrl) || released) return decoder;
+        byte[] data = download(sheetUrl);
+        try {
+            if (data != null) decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+        } catch (IOException e) {
+            Log.e(TAG, "getSheet: unable to decode " + sheetUrl, e);
+        }
+        if (decoder == null) failedSheets.add(sheetUrl);
+        else sheets.put(sheetUrl, decoder);
+        return decoder;
+    }
+
+    private static byte[] download(String url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "download: " + connection.getResponseCode() + " for " + url);
+                return null;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) out.write(buffer, 0, n);
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "download: " + url, e);
+            return null;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+}
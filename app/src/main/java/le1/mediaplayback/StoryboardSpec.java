@@ -0,0 +1,119 @@
+package le1.mediaplayback;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Locale;
+
+/**
+ * One level of the storyboard of a YouTube video, as described by its storyboard spec:
+ * <pre>
+ * url template|width#height#count#columns#rows#interval#name#sigh|...
+ * </pre>
+ * The template holds $L, the index of the level, and $N, the name of the sheet.
+ * In the name, $M is the index of the sheet. Every sheet url must be signed with the sigh of its level
+ */
+class StoryboardSpec {
+    /**
+     * The level picked is the largest one with tiles at most this wide
+     */
+    static final int MAX_TILE_WIDTH = 160;
+
+    final int tileWidth;
+    final int tileHeight;
+    /**
+     * Number of tiles over the whole video
+     */
+    final int count;
+    final int columns;
+    final int rows;
+    /**
+     * Milliseconds between two tiles, 0 if the tiles are spread over the whole video
+     */
+    final long interval;
+
+    private final String urlTemplate;
+    private final int level;
+    private final String name;
+    private final String sigh;
+
+    private StoryboardSpec(String urlTemplate, int level, String[] fields) {
+        this.urlTemplate = urlTemplate;
+        this.level = level;
+        tileWidth = Integer.parseInt(fields[0]);
+        tileHeight = Integer.parseInt(fields[1]);
+        count = Integer.parseInt(fields[2]);
+        columns = Integer.parseInt(fields[3]);
+        rows = Integer.parseInt(fields[4]);
+        interval = Long.parseLong(fields[5]);
+        name = fields[6];
+        sigh = fields[7];
+    }
+
+    /**
+     * @param spec The storyboard spec of a video
+     * @return The level with the largest tiles up to {@link #MAX_TILE_WIDTH}, or the smallest one if they are all larger.
+     * Null if the spec can't be parsed
+     */
+    static StoryboardSpec parse(String spec) {
+        if (spec == null) return null;
+        String[] parts = spec.split("\\|");
+        StoryboardSpec best = null;
+        try {
+            for (int l = 1; l < parts.length; l++) {
+                String[] fields = parts[l].split("#");
+                if (fields.length < 8) return null;
+                StoryboardSpec candidate = new StoryboardSpec(parts[0], l - 1, fields);
+                if (candidate.count <= 0 || candidate.columns <= 0 || candidate.rows <= 0) continue;
+                if (best == null) {
+                    best = candidate;
+                } else if (candidate.tileWidth <= MAX_TILE_WIDTH) {
+                    if (best.tileWidth > MAX_TILE_WIDTH || candidate.tileWidth > best.tileWidth) best = candidate;
+                } else if (best.tileWidth > MAX_TILE_WIDTH && candidate.tileWidth < best.tileWidth) {
+                    best = candidate;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * @param videoInfo The url encoded response of get_video_info
+     * @return The storyboard found in it, null if there is none
+     */
+    static StoryboardSpec fromVideoInfo(String videoInfo) {
+        for (String pair : videoInfo.split("&")) {
+            if (!pair.startsWith("storyboard_spec=")) continue;
+            try {
+                return parse(URLDecoder.decode(pair.substring("storyboard_spec=".length()), "UTF-8"));
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    int getTilesPerSheet() {
+        return columns * rows;
+    }
+
+    /**
+     * @param position The position in milliseconds
+     * @param duration The duration of the video in milliseconds
+     * @return The index of the tile of a position, over the whole storyboard
+     */
+    int tileOf(long position, long duration) {
+        long tile = interval > 0 ? position / interval : position * count / duration;
+        return (int) Math.max(0, Math.min(count - 1, tile));
+    }
+
+    /**
+     * @return The signed url of a sheet
+     */
+    String sheetUrl(int sheet) {
+        String url = urlTemplate.replace("$L", String.valueOf(level))
+                .replace("$N", name.replace("$M", String.valueOf(sheet)));
+        return String.format(Locale.US, "%s%csigh=%s", url, url.indexOf('?') < 0 ? '?' : '&', sigh);
+    }
+}
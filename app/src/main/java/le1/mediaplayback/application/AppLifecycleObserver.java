@@ -31,4 +31,13 @@ public class AppLifecycleObserver implements LifecycleObserver {
         ((MediaPlaybackApplication) context.getApplicationContext()).getMusicControl().connect();
     }
 
+    /**
+     * Called when the app is no longer visible.
+     * Nothing can show the video anymore, so playback continues with audio only
+     */
+    @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+    void onStop() {
+        ((MediaPlaybackApplication) context.getApplicationContext()).getMusicControl().clearPlayerView();
+    }
+
 }
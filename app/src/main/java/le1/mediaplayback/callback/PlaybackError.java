@@ -0,0 +1,41 @@
+package le1.mediaplayback.callback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Why playback stopped with {@link PlaybackStatus#ERROR}
+ */
+public enum PlaybackError {
+    /**
+     * The streams of the video could not be extracted
+     */
+    UNRESOLVABLE,
+    /**
+     * The player failed while loading or playing the streams
+     */
+    PLAYBACK,
+    UNKNOWN;
+
+    /**
+     * Published with {@link PlaybackStateCompat#getErrorCode()} when the video could not be extracted
+     */
+    public static final int ERROR_CODE_UNRESOLVABLE = PlaybackStateCompat.ERROR_CODE_NOT_SUPPORTED;
+    /**
+     * Published with {@link PlaybackStateCompat#getErrorCode()} when the player failed
+     */
+    public static final int ERROR_CODE_PLAYBACK = PlaybackStateCompat.ERROR_CODE_APP_ERROR;
+
+    /**
+     * @param errorCode The {@link PlaybackStateCompat#getErrorCode()} of an error state
+     */
+    public static PlaybackError of(int errorCode) {
+        switch (errorCode) {
+            case ERROR_CODE_UNRESOLVABLE:
+                return UNRESOLVABLE;
+            case ERROR_CODE_PLAYBACK:
+                return PLAYBACK;
+            default:
+                return UNKNOWN;
+        }
+    }
+}
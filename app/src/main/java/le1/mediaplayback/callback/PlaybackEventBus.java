@@ -0,0 +1,164 @@
+package le1.mediaplayback.callback;
+
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Dispatches playback events to any number of {@link PlaybackStateListener}s.
+ * <p>
+ * Listeners can be added and removed from any thread, even while an event is being dispatched:
+ * every dispatch iterates over an immutable snapshot of the registrations, replaced on every change.
+ * Listeners without an {@link Executor} are called directly on the dispatching thread and cost no allocation,
+ * the others get a task on their executor.
+ * Listeners bound to a {@link LifecycleOwner} are removed when it's destroyed
+ */
+public class PlaybackEventBus {
+
+    /**
+     * A listener and where to call it
+     */
+    private static final class Registration {
+        final PlaybackStateListener listener;
+        /**
+         * Null to call the listener directly
+         */
+        final Executor executor;
+
+        Registration(PlaybackStateListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Removes a listener when its {@link LifecycleOwner} is destroyed
+     */
+    static class LifecycleRegistration implements LifecycleObserver {
+        private final PlaybackEventBus bus;
+        private final LifecycleOwner owner;
+        private final PlaybackStateListener listener;
+
+        LifecycleRegistration(PlaybackEventBus bus, LifecycleOwner owner, PlaybackStateListener listener) {
+            this.bus = bus;
+            this.owner = owner;
+            this.listener = listener;
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+        void onDestroy() {
+            bus.removeListener(listener);
+            owner.getLifecycle().removeObserver(this);
+        }
+    }
+
+    private static final Registration[] EMPTY = new Registration[0];
+
+    /**
+     * Replaced, never modified. Writes are guarded by this
+     */
+    private volatile Registration[] registrations = EMPTY;
+
+    /**
+     * Add a listener called on the dispatching thread. Adding it again does nothing
+     */
+    public void addListener(PlaybackStateListener listener) {
+        addListener(listener, null);
+    }
+
+    /**
+     * Add a listener called on an executor. Adding it again changes the executor
+     *
+     * @param executor Where the listener is called, null to call it on the dispatching thread
+     */
+    public synchronized void addListener(PlaybackStateListener listener, Executor executor) {
+        Registration[] current = registrations;
+        int index = indexOf(current, listener);
+        Registration[] updated;
+        if (index >= 0) {
+            updated = current.clone();
+        } else {
+            updated = Arrays.copyOf(current, current.length + 1);
+            index = current.length;
+        }
+        updated[index] = new Registration(listener, executor);
+        registrations = updated;
+    }
+
+    /**
+     * Add a listener that is removed automatically when the owner is destroyed.
+     * Must be called on the main thread
+     */
+    public void addListener(LifecycleOwner owner, PlaybackStateListener listener) {
+        if (owner.getLifecycle().getCurrentState() == Lifecycle.State.DESTROYED) return;
+        addListener(listener, null);
+        owner.getLifecycle().addObserver(new LifecycleRegistration(this, owner, listener));
+    }
+
+    public synchronized void removeListener(PlaybackStateListener listener) {
+        Registration[] current = registrations;
+        int index = indexOf(current, listener);
+        if (index < 0) return;
+        Registration[] updated = new Registration[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        registrations = updated;
+    }
+
+    public void dispatchMetadata(final MediaMetadataCompat metadata) {
+        for (final Registration r : registrations) {
+            if (r.executor == null) {
+                r.listener.onMetadataLoaded(metadata);
+            } else {
+                r.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.listener.onMetadataLoaded(metadata);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchState(final PlaybackStatus status, final long position) {
+        for (final Registration r : registrations) {
+            if (r.executor == null) {
+                r.listener.onStateChanged(status, position);
+            } else {
+                r.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.listener.onStateChanged(status, position);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchError(final PlaybackError cause) {
+        for (final Registration r : registrations) {
+            if (r.executor == null) {
+                r.listener.onError(cause);
+            } else {
+                r.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        r.listener.onError(cause);
+                    }
+                });
+            }
+        }
+    }
+
+    private static int indexOf(Registration[] registrations, PlaybackStateListener listener) {
+        for (int i = 0; i < registrations.length; i++) {
+            if (registrations[i].listener == listener) return i;
+        }
+        return -1;
+    }
+}
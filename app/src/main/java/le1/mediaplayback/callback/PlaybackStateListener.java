@@ -2,17 +2,21 @@ package le1.mediaplayback.callback;
 
 import android.support.v4.media.MediaMetadataCompat;
 
+/**
+ * Receives playback events, see {@link PlaybackEventBus}
+ */
 public interface PlaybackStateListener {
 
     void onMetadataLoaded(MediaMetadataCompat metadata);
 
-    void onLoading(String message);
+    /**
+     * @param status   The new state
+     * @param position The position in milliseconds when the state was published, -1 if unknown
+     */
+    void onStateChanged(PlaybackStatus status, long position);
 
-    void onPaused(String message);
-
-    void onPlaying(String message);
-
-    void onStopped(String message);
-
-    void onError(String message);
+    /**
+     * Called after {@link #onStateChanged(PlaybackStatus, long)} with {@link PlaybackStatus#ERROR}
+     */
+    void onError(PlaybackError cause);
 }
@@ -0,0 +1,48 @@
+package le1.mediaplayback.callback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * The playback states a {@link PlaybackStateListener} is told about
+ */
+public enum PlaybackStatus {
+    BUFFERING(PlaybackStateCompat.STATE_BUFFERING),
+    PLAYING(PlaybackStateCompat.STATE_PLAYING),
+    PAUSED(PlaybackStateCompat.STATE_PAUSED),
+    STOPPED(PlaybackStateCompat.STATE_STOPPED),
+    ERROR(PlaybackStateCompat.STATE_ERROR);
+
+    private final int state;
+
+    PlaybackStatus(int state) {
+        this.state = state;
+    }
+
+    /**
+     * @return The matching {@link PlaybackStateCompat} state
+     */
+    public int toPlaybackState() {
+        return state;
+    }
+
+    /**
+     * @param state A {@link PlaybackStateCompat} state
+     * @return The matching status, null for the states that are not reported, e.g. {@link PlaybackStateCompat#STATE_NONE}
+     */
+    public static PlaybackStatus of(int state) {
+        switch (state) {
+            case PlaybackStateCompat.STATE_BUFFERING:
+                return BUFFERING;
+            case PlaybackStateCompat.STATE_PLAYING:
+                return PLAYING;
+            case PlaybackStateCompat.STATE_PAUSED:
+                return PAUSED;
+            case PlaybackStateCompat.STATE_STOPPED:
+                return STOPPED;
+            case PlaybackStateCompat.STATE_ERROR:
+                return ERROR;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package le1.mediaplayback.service;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads video thumbnails for {@link android.support.v4.media.MediaMetadataCompat}, off the main thread.
+ * <p>
+ * Images are always downsampled while decoding so that they are never bigger than the requested size:
+ * the metadata is sent over Binder and a full resolution thumbnail can throw a TransactionTooLargeException.
+ * Decoded bitmaps are kept in a memory LRU bounded in bytes, the downloaded files in an LRU on disk,
+ * and bitmaps evicted from memory are reused by the next decodes.
+ * <p>
+ * A bitmap handed out can't be reused while it's shown: it's referenced while a callback receives it
+ * and while it's {@link #pin(Bitmap) pinned}, and only bitmaps evicted with no references go in the pool
+ */
+class ArtworkLoader {
+    private static final String TAG = "LE1_ArtworkLoader";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Max side of the art shown on the lock screen, the biggest target
+     */
+    static final int LOCK_SCREEN_SIZE = 512;
+
+    private static final long DISK_CACHE_BYTES = 20 * 1024 * 1024;
+    private static final int POOL_MAX_BITMAPS = 4;
+    private static final int TIMEOUT_MS = 15000;
+
+    /**
+     * Receives the result of {@link #load(String, int, Callback)}, on the playback thread
+     */
+    interface Callback {
+        /**
+         * @param bitmap The downsampled artwork, null if it could not be loaded.
+         *               It may be reused once the callback returns, {@link #pin(Bitmap)} it to keep it
+         */
+        void onArtworkLoaded(String url, Bitmap bitmap);
+    }
+
+    private static ArtworkLoader INSTANCE;
+
+    private final File directory;
+    /**
+     * Delivers the callbacks, on the thread calling {@link #load(String, int, Callback)}
+     */
+    private final Handler callbackHandler = new Handler(PlayerManager.getPlaybackLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "artwork");
+        }
+    });
+
+    private final LruCache<String, Bitmap> memory;
+
+    /**
+     * Bitmaps evicted from {@link #memory}, reused through {@link BitmapFactory.Options#inBitmap}. Guarded by itself
+     */
+    private final List<Bitmap> pool = new ArrayList<>(POOL_MAX_BITMAPS);
+
+    /**
+     * How many times each bitmap handed out is in use, they must never go in the {@link #pool}.
+     * Guarded by {@link #pool}
+     */
+    private final Map<Bitmap, Integer> references = new HashMap<>();
+
+    /**
+     * The bitmap being shown. Guarded by {@link #pool}
+     */
+    private Bitmap pinned;
+
+    /**
+     * Callbacks waiting for each key, so that the same artwork is never loaded twice at once. Playback thread only
+     */
+    private final Map<String, List<Callback>> pending = new HashMap<>();
+
+    static synchronized ArtworkLoader getInstance(Context c) {
+        if (INSTANCE == null) INSTANCE = new ArtworkLoader(c);
+        return INSTANCE;
+    }
+
+    /**
+     * @param context Application context
+     */
+    private ArtworkLoader(Context context) {
+        directory = new File(context.getApplicationContext().getCacheDir(), "artwork");
+        if (!directory.exists() && !directory.mkdirs()) Log.e(TAG, "unable to create " + directory);
+
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 8 * 1024 * 1024);
+        memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                // a replaced bitmap may still be on its way to a callback
+                if (evicted) recycleIntoPool(oldValue);
+            }
+        };
+    }
+
+    /**
+     * Pin the image if already in memory, see {@link #pin(Bitmap)}
+     *
+     * @param url  The url of the image
+     * @param size The max side of the bitmap, in pixels
+     * @return The bitmap pinned, null if not in memory
+     */
+    Bitmap pinCached(String url, int size) {
+        synchronized (pool) {
+            Bitmap cached = url == null ? null : memory.get(keyOf(url, size));
+            pin(cached);
+            return cached;
+        }
+    }
+
+    /**
+     * Load an image, downsampled to fit a size x size square.
+     * Must be called on the playback thread, see {@link PlayerManager#getPlaybackLooper()}
+     *
+     * @param url      The url of the image
+     * @param size     The max side of the bitmap, in pixels
+     * @param callback Called on the playback thread with the result
+     */
+    void load(final String url, final int size, Callback callback) {
+        if (url == null) {
+            callback.onArtworkLoaded(null, null);
+            return;
+        }
+        final String key = keyOf(url, size);
+        Bitmap cached;
+        synchronized (pool) {
+            cached = memory.get(key);
+            acquire(cached);
+        }
+        if (cached != null) {
+            callback.onArtworkLoaded(url, cached);
+            release(cached);
+            return;
+        }
+
+        List<Callback> callbacks = pending.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+        callbacks = new ArrayList<>(1);
+        callbacks.add(callback);
+        pending.put(key, callbacks);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = loadBlocking(url, size);
+                if (bitmap != null) {
+                    // referenced before it can be evicted, until the callbacks are done with it
+                    acquire(bitmap);
+                    memory.put(key, bitmap);
+                }
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Callback> callbacks = pending.remove(key);
+                        if (callbacks != null) {
+                            for (Callback c : callbacks) c.onArtworkLoaded(url, bitmap);
+                        }
+                        release(bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Keep a bitmap out of the reuse pool while it is shown, e.g. in the current metadata.
+     * Only one bitmap is pinned at a time, pinning another one releases the previous
+     *
+     * @param bitmap The bitmap being shown, null to unpin
+     */
+    void pin(Bitmap bitmap) {
+        synchronized (pool) {
+            if (bitmap == pinned) return;
+            acquire(bitmap);
+            release(pinned);
+            pinned = bitmap;
+        }
+    }
+
+    private void acquire(Bitmap bitmap) {
+        if (bitmap == null) return;
+        synchronized (pool) {
+            Integer count = references.get(bitmap);
+            references.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * A bitmap evicted while referenced is left to the garbage collector, it is not in memory anymore
+     */
+    private void release(Bitmap bitmap) {
+        if (bitmap == null) return;
+        synchronized (pool) {
+            Integer count = references.get(bitmap);
+            if (count == null || count <= 1) references.remove(bitmap);
+            else references.put(bitmap, count - 1);
+        }
+    }
+
+    private static String keyOf(String url, int size) {
+        return size + ":" + url;
+    }
+
+    /**
+     * @return The file of an image in the disk cache, named after the SHA-1 of its url so that two urls never share it
+     */
+    private File fileOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) name.append(String.format(Locale.US, "%02x", b));
+            return new File(directory, name.append(".img").toString());
+        } catch (NoSuchAlgorithmException e) {
+            // every platform provides SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read the image from disk or download it, then decode it. Runs on {@link #executor}
+     */
+    private Bitmap loadBlocking(String url, int size) {
+        File file = fileOf(url);
+        byte[] data = file.exists() ? readFile(file) : null;
+        if (data != null) {
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            data = download(url);
+            if (data == null) return null;
+            writeFile(file, data);
+            trimDisk();
+        }
+        return decode(data, size);
+    }
+
+    /**
+     * Decode with the biggest power of two sample size that keeps the image above the target,
+     * then let the decoder scale it down to exactly the target
+     */
+    private Bitmap decode(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int sourceSize = Math.max(options.outWidth, options.outHeight);
+        if (sourceSize <= 0) return null;
+
+        int sampleSize = 1;
+        while (sourceSize / (sampleSize * 2) >= size) sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // thumbnails are opaque jpegs, half the memory of ARGB_8888
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inMutable = true;
+        if (sourceSize > size) {
+            options.inScaled = true;
+            options.inDensity = sourceSize;
+            options.inTargetDensity = size * sampleSize;
+        }
+        int targetWidth = (int) Math.ceil((double) options.outWidth * Math.min(size, sourceSize) / sourceSize);
+        int targetHeight = (int) Math.ceil((double) options.outHeight * Math.min(size, sourceSize) / sourceSize);
+        options.inBitmap = takeFromPool(targetWidth * targetHeight * 2);
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap can't be reused for this image
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    private void recycleIntoPool(Bitmap bitmap) {
+        if (!bitmap.isMutable()) return;
+        synchronized (pool) {
+            if (references.containsKey(bitmap) || pool.size() >= POOL_MAX_BITMAPS) return;
+            pool.add(bitmap);
+        }
+    }
+
+    /**
+     * @return The smallest pooled bitmap with at least that many bytes, null if there is none
+     */
+    private Bitmap takeFromPool(int bytes) {
+        synchronized (pool) {
+            Bitmap best = null;
+            for (Bitmap b : pool) {
+                if (b.getAllocationByteCount() >= bytes
+                        && (best == null || b.getAllocationByteCount() < best.getAllocationByteCount()))
+                    best = b;
+            }
+            if (best != null) pool.remove(best);
+            return best;
+        }
+    }
+
+    private static byte[] download(String url) {
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "download: " + connection.getResponseCode() + " for " + url);
+                return null;
+            }
+            in = connection.getInputStream();
+            return readFully(in);
+        } catch (IOException e) {
+            Log.e(TAG, "download: " + url, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return readFully(in);
+        } catch (IOException e) {
+            Log.e(TAG, "readFile: " + file, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "writeFile: " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    /**
+     * Delete the least recently used files until the cache is at most {@link #DISK_CACHE_BYTES}
+     */
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= DISK_CACHE_BYTES) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        Iterator<File> iterator = Arrays.asList(files).iterator();
+        while (total > DISK_CACHE_BYTES && iterator.hasNext()) {
+            File f = iterator.next();
+            total -= f.length();
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package le1.mediaplayback.service;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The browse tree exposed to Android Auto, Wear and any other {@link MediaBrowserCompat}:
+ * <pre>
+ * root
+ * ├── recents
+ * ├── queue
+ * ├── library
+ * └── playlists
+ *     └── one node per playlist
+ * </pre>
+ * Playable items use the YouTube id as media id.
+ * <p>
+ * Children of the catalog nodes are built in background and cached until {@link #invalidate(String)},
+ * queue children are built page by page as the queue can be huge and changes often.
+ * Clients passing {@link MediaBrowserCompat#EXTRA_PAGE} and {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}
+ * only receive the page they asked for. Must be used on the main thread
+ */
+class BrowseTree {
+    private static final String TAG = "LE1_BrowseTree";
+
+    static final String ROOT = "__ROOT__";
+    static final String RECENTS = "__RECENTS__";
+    static final String QUEUE = "__QUEUE__";
+    static final String LIBRARY = "__LIBRARY__";
+    static final String PLAYLISTS = "__PLAYLISTS__";
+    private static final String PLAYLIST_PREFIX = "__PLAYLIST__/";
+
+    private final MediaCatalog catalog;
+    private final PlayQueue queue;
+    /**
+     * Handler of the thread that owns the {@link #queue}
+     */
+    private final Handler queueHandler;
+    private final Handler handler = new Handler();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Children of each node, by parent id
+     */
+    private final Map<String, List<MediaItem>> cache = new HashMap<>();
+    /**
+     * How many times each node was invalidated, so that children built before an invalidation are not cached
+     */
+    private final Map<String, Integer> generations = new HashMap<>();
+    /**
+     * How many times every playlist node was invalidated at once, see {@link #invalidatePlaylists()}
+     */
+    private int playlistsGeneration;
+
+    /**
+     * @param catalog Where the recents, library and playlists come from
+     * @param queue   The play queue of the service
+     * @param queueHandler Handler of the thread that owns the queue, the only one allowed to read it
+     */
+    BrowseTree(MediaCatalog catalog, PlayQueue queue, Handler queueHandler) {
+        this.catalog = catalog;
+        this.queue = queue;
+        this.queueHandler = queueHandler;
+    }
+
+    /**
+     * @return The media id of a playlist node
+     */
+    static String playlistId(String playlist) {
+        return PLAYLIST_PREFIX + playlist;
+    }
+
+    /**
+     * Send the children of a node, or the page of them requested through the options
+     *
+     * @param parentId The media id of the node
+     * @param result   The result of {@link MediaBrowserServiceCompat#onLoadChildren(String, MediaBrowserServiceCompat.Result, Bundle)}
+     * @param options  The options given by the client, can be null
+     */
+    void loadChildren(final String parentId, final MediaBrowserServiceCompat.Result<List<MediaItem>> result, Bundle options) {
+        final int page = options == null ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        final int pageSize = options == null ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+
+        if (ROOT.equals(parentId)) {
+            result.sendResult(page(buildRoot(), page, pageSize));
+            return;
+        }
+        if (QUEUE.equals(parentId)) {
+            loadQueuePage(result, page, pageSize);
+            return;
+        }
+
+        List<MediaItem> cached = cache.get(parentId);
+        if (cached != null) {
+            result.sendResult(page(cached, page, pageSize));
+            return;
+        }
+
+        result.detach();
+        final int generation = generationOf(parentId);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MediaItem> children = buildCatalogChildren(parentId);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // invalidated while building, the client is about to ask again
+                        if (children != null && generation == generationOf(parentId)) cache.put(parentId, children);
+                        result.sendResult(children == null ? null : page(children, page, pageSize));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Send the videos of the catalog matching a query, for {@link MediaBrowserServiceCompat#onSearch(String, Bundle, MediaBrowserServiceCompat.Result)}
+     *
+     * @param limit Max number of results
+     */
+    void search(String query, int limit, final MediaBrowserServiceCompat.Result<List<MediaItem>> result) {
+        final List<String> videoIds = catalog.search(query, limit);
+        result.detach();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<MediaItem> items = new ArrayList<>(videoIds.size());
+                for (String videoId : videoIds) {
+                    MediaCatalog.Entry entry = catalog.get(videoId);
+                    if (entry != null) items.add(playable(entry));
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.sendResult(items);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Forget the cached children of a node, they are rebuilt the next time they're loaded
+     */
+    void invalidate(String parentId) {
+        cache.remove(parentId);
+        Integer generation = generations.get(parentId);
+        generations.put(parentId, generation == null ? 1 : generation + 1);
+    }
+
+    /**
+     * Forget the cached children of every playlist node and of {@link #PLAYLISTS}
+     */
+    void invalidatePlaylists() {
+        List<String> keys = new ArrayList<>(cache.keySet());
+        for (String key : keys) {
+            if (key.startsWith(PLAYLIST_PREFIX)) cache.remove(key);
+        }
+        playlistsGeneration++;
+        invalidate(PLAYLISTS);
+    }
+
+    /**
+     * @return A number that grows every time the node is invalidated
+     */
+    private int generationOf(String parentId) {
+        Integer generation = generations.get(parentId);
+        int g = generation == null ? 0 : generation;
+        return parentId.startsWith(PLAYLIST_PREFIX) ? g + playlistsGeneration : g;
+    }
+
+    void release() {
+        executor.shutdownNow();
+        cache.clear();
+    }
+
+    private List<MediaItem> buildRoot() {
+        List<MediaItem> children = new ArrayList<>(4);
+        children.add(browsable(RECENTS, "Recents"));
+        children.add(browsable(QUEUE, "Queue"));
+        children.add(browsable(LIBRARY, "Library"));
+        children.add(browsable(PLAYLISTS, "Playlists"));
+        return children;
+    }
+
+    /**
+     * Reads the catalog, runs on {@link #executor}
+     *
+     * @return null if the node does not exist
+     */
+    private List<MediaItem> buildCatalogChildren(String parentId) {
+        if (RECENTS.equals(parentId)) return playable(catalog.getRecents());
+        if (LIBRARY.equals(parentId)) return playable(catalog.getLibrary());
+        if (PLAYLISTS.equals(parentId)) {
+            List<String> names = catalog.getPlaylistNames();
+            List<MediaItem> children = new ArrayList<>(names.size());
+            for (String name : names) children.add(browsable(playlistId(name), name));
+            return children;
+        }
+        if (parentId.startsWith(PLAYLIST_PREFIX))
+            return playable(catalog.getPlaylist(parentId.substring(PLAYLIST_PREFIX.length())));
+        Log.e(TAG, "buildCatalogChildren: unknown node " + parentId);
+        return null;
+    }
+
+    /**
+     * Only the ids of the requested page are read from the queue, on the {@link #queueHandler} thread.
+     * Their metadata is read in background
+     */
+    private void loadQueuePage(final MediaBrowserServiceCompat.Result<List<MediaItem>> result, final int page, final int pageSize) {
+        result.detach();
+        queueHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int from = 0;
+                int to = queue.size();
+                if (page >= 0 && pageSize > 0) {
+                    from = Math.min(to, page * pageSize);
+                    to = Math.min(to, from + pageSize);
+                }
+                final List<String> videoIds = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) videoIds.add(queue.get(i));
+
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            final List<MediaItem> children = new ArrayList<>(videoIds.size());
+                            for (String videoId : videoIds) {
+                                MediaCatalog.Entry entry = catalog.get(videoId);
+                                children.add(playable(entry != null ? entry : new MediaCatalog.Entry(videoId, null, null, null, 0)));
+                            }
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    result.sendResult(children);
+                                }
+                            });
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // released in the meantime
+                    Log.d(TAG, "loadQueuePage: tree released");
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The requested page of a list, the whole list if page or pageSize are not valid
+     */
+    private static List<MediaItem> page(List<MediaItem> children, int page, int pageSize) {
+        if (page < 0 || pageSize < 1) return children;
+        int from = page * pageSize;
+        if (from >= children.size()) return new ArrayList<>(0);
+        return new ArrayList<>(children.subList(from, Math.min(children.size(), from + pageSize)));
+    }
+
+    private static MediaItem browsable(String mediaId, String title) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    private static List<MediaItem> playable(List<MediaCatalog.Entry> entries) {
+        List<MediaItem> children = new ArrayList<>(entries.size());
+        for (MediaCatalog.Entry entry : entries) children.add(playable(entry));
+        return children;
+    }
+
+    private static MediaItem playable(MediaCatalog.Entry entry) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(entry.videoId)
+                .setTitle(entry.title != null ? entry.title : entry.videoId)
+                .setSubtitle(entry.channelId)
+                .setIconUri(entry.imageUrl != null ? Uri.parse(entry.imageUrl) : null)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_PLAYABLE);
+    }
+}
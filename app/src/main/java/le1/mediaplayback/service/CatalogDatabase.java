@@ -0,0 +1,60 @@
+package le1.mediaplayback.service;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Schema of the {@link MediaCatalog} database
+ */
+class CatalogDatabase extends SQLiteOpenHelper {
+    private static final String NAME = "catalog.db";
+    private static final int VERSION = 1;
+
+    static final String TABLE_MEDIA = "media";
+    static final String TABLE_RECENTS = "recents";
+    static final String TABLE_PLAYLIST_ITEMS = "playlist_items";
+
+    static final String COLUMN_VIDEO_ID = "video_id";
+    static final String COLUMN_TITLE = "title";
+    static final String COLUMN_CHANNEL_ID = "channel_id";
+    static final String COLUMN_IMAGE_URL = "image_url";
+    static final String COLUMN_DURATION = "duration";
+    static final String COLUMN_PLAYED_AT = "played_at";
+    static final String COLUMN_PLAYLIST = "playlist";
+    static final String COLUMN_POSITION = "position";
+
+    /**
+     * @param context Application context
+     */
+    CatalogDatabase(Context context) {
+        super(context.getApplicationContext(), NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // the primary keys index the lookups by video id
+        db.execSQL("CREATE TABLE " + TABLE_MEDIA + " ("
+                + COLUMN_VIDEO_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_TITLE + " TEXT, "
+                + COLUMN_CHANNEL_ID + " TEXT, "
+                + COLUMN_IMAGE_URL + " TEXT, "
+                + COLUMN_DURATION + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX media_title ON " + TABLE_MEDIA + " (" + COLUMN_TITLE + " COLLATE NOCASE)");
+
+        db.execSQL("CREATE TABLE " + TABLE_RECENTS + " ("
+                + COLUMN_VIDEO_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_PLAYED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX recents_played_at ON " + TABLE_RECENTS + " (" + COLUMN_PLAYED_AT + ")");
+
+        db.execSQL("CREATE TABLE " + TABLE_PLAYLIST_ITEMS + " ("
+                + COLUMN_PLAYLIST + " TEXT NOT NULL, "
+                + COLUMN_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_VIDEO_ID + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PLAYLIST + ", " + COLUMN_POSITION + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+}
@@ -0,0 +1,323 @@
+package le1.mediaplayback.service;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves media ids into {@link ResolvedMedia}, making sure that:
+ * <ul>
+ * <li>concurrent requests for the same id share a single in-flight extraction</li>
+ * <li>extractions run on a bounded executor</li>
+ * <li>only the most recent {@link #request(String, Callback)} gets its result delivered,
+ * every request it supersedes is cancelled</li>
+ * </ul>
+ */
+class ExtractionCoordinator {
+    private static final String TAG = "LE1_ExtractionCoord";
+    private static final int MAX_CONCURRENT_EXTRACTIONS = 2;
+    private static final int MAX_PENDING_EXTRACTIONS = 8;
+
+    /**
+     * Receives the result of {@link #request(String, Callback)}, always posted to the callback {@link Handler} or {@link Executor}
+     */
+    interface Callback {
+        void onResolved(ResolvedMedia media);
+
+        void onError(String mediaId);
+    }
+
+    /**
+     * A request waiting for an {@link Extraction}
+     */
+    private static class Waiter {
+        /**
+         * Can be null for {@link #prefetch(String, Callback)} requests
+         */
+        final Callback callback;
+        final int generation;
+        /**
+         * Whether this is a {@link #prefetch(String, Callback)} request, which is never superseded
+         */
+        final boolean prefetch;
+
+        Waiter(Callback callback, int generation, boolean prefetch) {
+            this.callback = callback;
+            this.generation = generation;
+            this.prefetch = prefetch;
+        }
+    }
+
+    private final StreamResolver resolver;
+    private final StreamCache streamCache;
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Extractions not completed yet, by media id. Guarded by this
+     */
+    private final Map<String, Extraction> inFlight = new HashMap<>();
+
+    /**
+     * Incremented by every {@link #request(String, Callback)}, a {@link Waiter} with an older
+     * generation has been superseded. Guarded by this
+     */
+    private int generation;
+
+    private final AtomicInteger coalescedCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+
+    /**
+     * @param resolver        Used to resolve media ids not found in the {@link StreamCache}
+     * @param streamCache     The cache of resolved media
+     * @param callbackHandler Handler on which every {@link Callback} is called
+     */
+    ExtractionCoordinator(StreamResolver resolver, StreamCache streamCache, final Handler callbackHandler) {
+        this(resolver, streamCache, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                callbackHandler.post(command);
+            }
+        });
+    }
+
+    /**
+     * @param resolver         Used to resolve media ids not found in the {@link StreamCache}
+     * @param streamCache      The cache of resolved media, null to always use the resolver
+     * @param callbackExecutor Where every {@link Callback} is called, e.g. a test thread
+     */
+    ExtractionCoordinator(StreamResolver resolver, StreamCache streamCache, Executor callbackExecutor) {
+        this.resolver = resolver;
+        this.streamCache = streamCache;
+        this.callbackExecutor = callbackExecutor;
+        executor = new ThreadPoolExecutor(MAX_CONCURRENT_EXTRACTIONS, MAX_CONCURRENT_EXTRACTIONS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_PENDING_EXTRACTIONS),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "extraction-" + count.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resolve a media id for playback. Supersedes every previous request:
+     * their callbacks won't be called and their extractions are cancelled if no one else needs them
+     *
+     * @param mediaId  The YouTube id of the video
+     * @param callback Called with the result, unless a newer request is made in the meantime
+     */
+    void request(final String mediaId, final Callback callback) {
+        synchronized (this) {
+            int requestGeneration = ++generation;
+            cancelSupersededExtractions(mediaId);
+            Extraction extraction = inFlight.get(mediaId);
+            if (extraction != null) {
+                coalescedCount.incrementAndGet();
+                Log.d(TAG, "request: joining in-flight extraction of " + mediaId);
+            } else {
+                extraction = start(mediaId);
+            }
+            if (extraction != null) {
+                extraction.waiters.add(new Waiter(callback, requestGeneration, false));
+                return;
+            }
+        }
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(mediaId);
+            }
+        });
+    }
+
+    /**
+     * Resolve a media id in background so that the result is already in {@link StreamCache}
+     * when it gets requested. Never supersedes nor gets superseded by other requests
+     *
+     * @param mediaId  The YouTube id of the video
+     * @param callback Called with the result, can be null
+     */
+    void prefetch(String mediaId, Callback callback) {
+        synchronized (this) {
+            Extraction extraction = inFlight.get(mediaId);
+            if (extraction != null) {
+                coalescedCount.incrementAndGet();
+            } else {
+                extraction = start(mediaId);
+            }
+            if (extraction != null) extraction.waiters.add(new Waiter(callback, 0, true));
+        }
+    }
+
+    /**
+     * Supersede every pending {@link #request(String, Callback)}, e.g. when playback is stopped
+     */
+    void cancelRequests() {
+        synchronized (this) {
+            generation++;
+            cancelSupersededExtractions(null);
+        }
+    }
+
+    /**
+     * @return how many requests joined an extraction already in flight
+     */
+    int getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return how many requests were superseded before their result was delivered
+     */
+    int getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    /**
+     * Cancel everything and stop the executor
+     */
+    void shutdown() {
+        cancelRequests();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Start a new extraction and track it in {@link #inFlight}. Must hold the lock
+     *
+     * @return the new extraction or null if the executor is saturated
+     */
+    private Extraction start(String mediaId) {
+        Extraction extraction = new Extraction(mediaId);
+        try {
+            executor.execute(extraction.future);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "start: too many pending extractions, dropping " + mediaId);
+            return null;
+        }
+        inFlight.put(mediaId, extraction);
+        return extraction;
+    }
+
+    /**
+     * Cancel the extractions that only superseded requests are waiting for. Must hold the lock
+     *
+     * @param keepMediaId The media id that must not be cancelled, can be null
+     */
+    private void cancelSupersededExtractions(String keepMediaId) {
+        Iterator<Extraction> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            Extraction extraction = iterator.next();
+            if (extraction.mediaId.equals(keepMediaId)) continue;
+            boolean prefetched = false;
+            for (Waiter waiter : extraction.waiters) {
+                if (waiter.prefetch) prefetched = true;
+            }
+            if (prefetched) continue;
+
+            cancelledCount.addAndGet(extraction.waiters.size());
+            iterator.remove();
+            extraction.cancel();
+        }
+    }
+
+    /**
+     * Called on the executor thread when an extraction completes, fails or is cancelled.
+     * Delivers the result to the waiters that are still current
+     */
+    private void onDone(final Extraction extraction) {
+        final List<Waiter> waiters;
+        synchronized (this) {
+            if (inFlight.get(extraction.mediaId) == extraction) inFlight.remove(extraction.mediaId);
+            if (extraction.future.isCancelled()) return;
+            waiters = new ArrayList<>(extraction.waiters);
+        }
+
+        ResolvedMedia result = null;
+        try {
+            result = extraction.future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "extraction of " + extraction.mediaId + " failed", e);
+        }
+
+        final ResolvedMedia media = result;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Waiter waiter : waiters) {
+                    if (waiter.callback == null) continue;
+                    if (!waiter.prefetch && !isCurrent(waiter)) {
+                        cancelledCount.incrementAndGet();
+                        continue;
+                    }
+                    if (media != null) waiter.callback.onResolved(media);
+                    else waiter.callback.onError(extraction.mediaId);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isCurrent(Waiter waiter) {
+        return waiter.generation == generation;
+    }
+
+    /**
+     * A single extraction, shared by every {@link Waiter} of the same media id
+     */
+    private class Extraction implements Callable<ResolvedMedia> {
+        final String mediaId;
+        final List<Waiter> waiters = new ArrayList<>();
+        final FutureTask<ResolvedMedia> future;
+
+        Extraction(String mediaId) {
+            this.mediaId = mediaId;
+            future = new FutureTask<ResolvedMedia>(this) {
+                @Override
+                protected void done() {
+                    onDone(Extraction.this);
+                }
+            };
+        }
+
+        /**
+         * Looks in {@link #streamCache} first, then asks the {@link #resolver}
+         */
+        @Override
+        public ResolvedMedia call() throws Exception {
+            ResolvedMedia cached = streamCache == null ? null : streamCache.get(mediaId);
+            if (cached != null) {
+                Log.d(TAG, "call: stream cache hit for " + mediaId);
+                return cached;
+            }
+
+            ResolvedMedia media = resolver.resolve(mediaId);
+            if (streamCache != null) streamCache.put(media);
+            return media;
+        }
+
+        /**
+         * Interrupts the {@link StreamResolver} if it is running
+         */
+        void cancel() {
+            future.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package le1.mediaplayback.service;
+
+import android.os.Build;
+
+/**
+ * Chooses which streams of a {@link ResolvedMedia} to play, ranking them by
+ * codec efficiency, available bandwidth and size of the surface the video is shown on
+ */
+class FormatRanker {
+
+    /**
+     * Used when the bandwidth meter has no estimate yet, in bits per second
+     */
+    static final long DEFAULT_BITRATE_ESTIMATE = 1000000;
+
+    /**
+     * Fraction of the estimated bandwidth that the selected streams may use
+     */
+    private static final float BANDWIDTH_FRACTION = 0.75f;
+
+    /**
+     * Opus delivers the same perceived quality of AAC at about two thirds of the bitrate
+     */
+    private static final float OPUS_EFFICIENCY = 1.5f;
+
+    /**
+     * VP9 needs about two thirds of the bitrate of H.264 for the same quality
+     */
+    private static final float VP9_BITRATE_FACTOR = 0.65f;
+
+    /**
+     * Approximate bitrate (bits per second) of YouTube's H.264 video only streams, by height
+     */
+    private static final int[] HEIGHTS = {144, 240, 360, 480, 720, 1080, 1440, 2160};
+    private static final int[] H264_BITRATES = {100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000, 20000000};
+
+    /**
+     * The streams chosen for playback
+     */
+    static class Selection {
+        /**
+         * An audio only stream, or a stream with both audio and video if there are no audio only streams
+         */
+        final ResolvedMedia.Stream audio;
+        /**
+         * A video only stream, null if {@link #audio} already contains the video or if there is no video
+         */
+        final ResolvedMedia.Stream video;
+
+        Selection(ResolvedMedia.Stream audio, ResolvedMedia.Stream video) {
+            this.audio = audio;
+            this.video = video;
+        }
+    }
+
+    private final boolean webmAudioSupported;
+    private final boolean webmVideoSupported;
+
+    /**
+     * Ranker for the codecs supported by this device.
+     * Opus and VP9 decoders are guaranteed by the platform only from Lollipop
+     */
+    FormatRanker() {
+        this(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+    }
+
+    /**
+     * @param webmAudioSupported Whether Opus/Vorbis streams can be decoded
+     * @param webmVideoSupported Whether VP9 streams can be decoded
+     */
+    FormatRanker(boolean webmAudioSupported, boolean webmVideoSupported) {
+        this.webmAudioSupported = webmAudioSupported;
+        this.webmVideoSupported = webmVideoSupported;
+    }
+
+    /**
+     * @param media           The streams to choose from
+     * @param bitrateEstimate Bandwidth estimate in bits per second, or a negative value if unknown
+     * @param viewHeight      Height in pixels of the surface the video is shown on, 0 if there is none
+     * @return The best streams or null if the media has nothing playable
+     */
+    Selection select(ResolvedMedia media, long bitrateEstimate, int viewHeight) {
+        if (bitrateEstimate <= 0) bitrateEstimate = DEFAULT_BITRATE_ESTIMATE;
+        long budget = (long) (bitrateEstimate * BANDWIDTH_FRACTION);
+
+        ResolvedMedia.Stream audio = selectAudio(media, budget);
+        if (audio == null) {
+            // no audio only streams, fall back to the best muxed stream
+            ResolvedMedia.Stream muxed = selectMuxed(media);
+            return muxed == null ? null : new Selection(muxed, null);
+        }
+
+        ResolvedMedia.Stream video = selectVideo(media, budget - audio.audioBitrate * 1000L, viewHeight);
+        return new Selection(audio, video);
+    }
+
+    /**
+     * Highest quality audio only stream that fits in the budget,
+     * where quality is the bitrate weighted by codec efficiency
+     */
+    private ResolvedMedia.Stream selectAudio(ResolvedMedia media, long budget) {
+        ResolvedMedia.Stream best = null;
+        float bestQuality = 0;
+        ResolvedMedia.Stream smallest = null;
+        for (ResolvedMedia.Stream s : media.streams) {
+            if (!s.isAudioOnly()) continue;
+            if (s.isWebm() && !webmAudioSupported) continue;
+            if (smallest == null || s.audioBitrate < smallest.audioBitrate) smallest = s;
+            if (s.audioBitrate * 1000L > budget) continue;
+
+            float quality = s.audioBitrate * (s.isWebm() ? OPUS_EFFICIENCY : 1f);
+            if (best == null || quality > bestQuality
+                    || (quality == bestQuality && s.audioBitrate < best.audioBitrate)) {
+                best = s;
+                bestQuality = quality;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * Tallest video only stream that fits both the budget and the view,
+     * preferring VP9 to H.264 at the same height
+     */
+    private ResolvedMedia.Stream selectVideo(ResolvedMedia media, long budget, int viewHeight) {
+        ResolvedMedia.Stream best = null;
+        ResolvedMedia.Stream smallest = null;
+        for (ResolvedMedia.Stream s : media.streams) {
+            if (!s.isVideoOnly()) continue;
+            if (s.isWebm() && !webmVideoSupported) continue;
+            if (smallest == null || s.height < smallest.height) smallest = s;
+            if (estimateVideoBitrate(s) > budget) continue;
+            // no point in downloading more pixels than the view can show
+            if (s.height > Math.max(viewHeight, HEIGHTS[0])) continue;
+
+            if (best == null || s.height > best.height
+                    || (s.height == best.height && s.isWebm() && !best.isWebm())) {
+                best = s;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    /**
+     * Highest resolution stream that contains both audio and video
+     */
+    private ResolvedMedia.Stream selectMuxed(ResolvedMedia media) {
+        ResolvedMedia.Stream best = null;
+        for (ResolvedMedia.Stream s : media.streams) {
+            if (s.isAudioOnly() || s.isVideoOnly()) continue;
+            if (s.isWebm() && !(webmAudioSupported && webmVideoSupported)) continue;
+            if (best == null || s.height > best.height) best = s;
+        }
+        return best;
+    }
+
+    /**
+     * @return the approximate bitrate of a video only stream in bits per second
+     */
+    private static long estimateVideoBitrate(ResolvedMedia.Stream stream) {
+        int i = 0;
+        while (i < HEIGHTS.length - 1 && HEIGHTS[i] < stream.height) i++;
+        long bitrate = H264_BITRATES[i];
+        return stream.isWebm() ? (long) (bitrate * VP9_BITRATE_FACTOR) : bitrate;
+    }
+}
@@ -0,0 +1,128 @@
+package le1.mediaplayback.service;
+
+import android.content.Context;
+
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSinkFactory;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSource;
+import com.google.android.exoplayer2.upstream.cache.CacheDataSourceFactory;
+import com.google.android.exoplayer2.upstream.cache.LeastRecentlyUsedCacheEvictor;
+import com.google.android.exoplayer2.upstream.cache.SimpleCache;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded, least recently used on-disk cache of the media bytes downloaded by {@link PlayerManager}.
+ * Entries are keyed by video id and itag (see {@link #keyOf(String, int)}) instead of by url,
+ * so they survive when the signed urls of a video are refreshed
+ */
+class MediaCache {
+    private static final long MAX_BYTES = 256 * 1024 * 1024;
+
+    private static MediaCache INSTANCE;
+
+    private final SimpleCache cache;
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+
+    /**
+     * Called with the bytes read from the cache
+     */
+    private final CacheDataSource.EventListener cacheListener = new CacheDataSource.EventListener() {
+        @Override
+        public void onCachedBytesRead(long cacheSizeBytes, long cachedBytesRead) {
+            hitBytes.addAndGet(cachedBytesRead);
+        }
+    };
+
+    static synchronized MediaCache getInstance(Context c) {
+        if (INSTANCE == null) INSTANCE = new MediaCache(c);
+        return INSTANCE;
+    }
+
+    /**
+     * @param context Application context
+     */
+    private MediaCache(Context context) {
+        cache = new SimpleCache(new File(context.getApplicationContext().getCacheDir(), "media"),
+                new LeastRecentlyUsedCacheEvictor(MAX_BYTES));
+    }
+
+    /**
+     * @param videoId The YouTube id of the video
+     * @param itag    The YouTube format id of the stream
+     * @return The key to use as custom cache key of the media source of that stream
+     */
+    static String keyOf(String videoId, int itag) {
+        return videoId + ":" + itag;
+    }
+
+    /**
+     * Wrap a factory of network {@link DataSource}s so that what they download is read from and written to this cache
+     *
+     * @param upstreamFactory Factory of the sources used on a cache miss
+     */
+    DataSource.Factory wrap(DataSource.Factory upstreamFactory) {
+        return new CacheDataSourceFactory(cache, upstreamFactory, new FileDataSourceFactory(),
+                new CacheDataSinkFactory(cache, CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE),
+                CacheDataSource.FLAG_BLOCK_ON_CACHE | CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR,
+                cacheListener);
+    }
+
+    /**
+     * Wrap the {@link TransferListener} of the network sources to count the bytes that were not in the cache
+     *
+     * @param listener The listener to forward every event to, e.g. the bandwidth meter
+     */
+    TransferListener<DataSource> countMisses(final TransferListener<? super DataSource> listener) {
+        return new TransferListener<DataSource>() {
+            @Override
+            public void onTransferStart(DataSource source, DataSpec dataSpec) {
+                listener.onTransferStart(source, dataSpec);
+            }
+
+            @Override
+            public void onBytesTransferred(DataSource source, int bytesTransferred) {
+                missBytes.addAndGet(bytesTransferred);
+                listener.onBytesTransferred(source, bytesTransferred);
+            }
+
+            @Override
+            public void onTransferEnd(DataSource source) {
+                listener.onTransferEnd(source);
+            }
+        };
+    }
+
+    /**
+     * @return The number of bytes served from the cache since the app started
+     */
+    long getHitBytes() {
+        return hitBytes.get();
+    }
+
+    /**
+     * @return The number of bytes downloaded because they were not in the cache since the app started
+     */
+    long getMissBytes() {
+        return missBytes.get();
+    }
+
+    /**
+     * @return The size limit of this cache in bytes
+     */
+    long getMaxBytes() {
+        return MAX_BYTES;
+    }
+
+    /**
+     * @return The number of bytes currently stored
+     */
+    long getCacheSpace() {
+        return cache.getCacheSpace();
+    }
+}
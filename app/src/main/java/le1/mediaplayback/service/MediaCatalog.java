@@ -0,0 +1,423 @@
+package le1.mediaplayback.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static le1.mediaplayback.service.CatalogDatabase.*;
+
+/**
+ * The videos known to the app: every video ever resolved (the library), the ones played most recently
+ * and the user playlists. Used to build the browse tree, see {@link BrowseTree},
+ * and to show the title of a video before it's resolved again.
+ * <p>
+ * Stored in SQLite, see {@link CatalogDatabase}. Writes are queued and applied in a single transaction
+ * shortly after, so that a burst of them costs one commit. Reads see the queued writes.
+ * <p>
+ * Titles and channels are also kept in a {@link SearchIndex}, filled from disk in background at startup
+ * and then updated by every {@link #put(ResolvedMedia)}.
+ * <p>
+ * Thread safe, but every read but {@link #lookup(String, LookupCallback)} and {@link #search(String, int)}
+ * may hit the disk, so they must not be called on the main thread
+ */
+class MediaCatalog {
+    private static final String TAG = "LE1_MediaCatalog";
+
+    static final int CHANGED_LIBRARY = 1;
+    static final int CHANGED_RECENTS = 1 << 1;
+    static final int CHANGED_PLAYLISTS = 1 << 2;
+
+    private static final int MAX_RECENTS = 100;
+    private static final int MEMORY_ENTRIES = 128;
+    private static final long FLUSH_DELAY_MS = 500;
+
+    /**
+     * The metadata of a video, without its streams
+     */
+    static class Entry {
+        final String videoId;
+        final String title;
+        final String channelId;
+        final String imageUrl;
+        /**
+         * Duration of the video in seconds
+         */
+        final long duration;
+
+        Entry(String videoId, String title, String channelId, String imageUrl, long duration) {
+            this.videoId = videoId;
+            this.title = title;
+            this.channelId = channelId;
+            this.imageUrl = imageUrl;
+            this.duration = duration;
+        }
+    }
+
+    /**
+     * Notified on the main thread after every change
+     */
+    interface Listener {
+        /**
+         * @param changes A combination of {@link #CHANGED_LIBRARY}, {@link #CHANGED_RECENTS} and {@link #CHANGED_PLAYLISTS}
+         */
+        void onCatalogChanged(int changes);
+    }
+
+    /**
+     * Receives the result of {@link #lookup(String, LookupCallback)} on the main thread
+     */
+    interface LookupCallback {
+        /**
+         * @param entry null if the video is not in the catalog
+         */
+        void onLookup(String videoId, Entry entry);
+    }
+
+    /**
+     * Receives the result of {@link #loadRecentIds(int, RecentsCallback)} on the main thread
+     */
+    interface RecentsCallback {
+        /**
+         * @param videoIds The most recently played videos, the most recent first
+         */
+        void onRecentsLoaded(List<String> videoIds);
+    }
+
+    /**
+     * A queued write, applied by {@link #flush()}
+     */
+    private interface Write {
+        /**
+         * @return The change flags of this write
+         */
+        int apply(SQLiteDatabase db);
+    }
+
+    private static MediaCatalog INSTANCE;
+
+    private final CatalogDatabase database;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    /**
+     * Recently read or written entries, so that the current and next videos never hit the disk
+     */
+    private final LruCache<String, Entry> memory = new LruCache<>(MEMORY_ENTRIES);
+
+    /**
+     * Writes not applied yet. Guarded by itself
+     */
+    private final List<Write> pendingWrites = new ArrayList<>();
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    static synchronized MediaCatalog getInstance(Context c) {
+        if (INSTANCE == null) INSTANCE = new MediaCatalog(c);
+        return INSTANCE;
+    }
+
+    /**
+     * @param context Application context
+     */
+    private MediaCatalog(Context context) {
+        database = new CatalogDatabase(context);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSearchIndex();
+            }
+        });
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add or update the metadata of a resolved video in the library
+     */
+    void put(ResolvedMedia media) {
+        final Entry entry = new Entry(media.videoId, media.title, media.channelId, media.imageUrl, media.duration);
+        memory.put(entry.videoId, entry);
+        searchIndex.add(entry.videoId, entry.title, entry.channelId);
+        enqueue(new Write() {
+            @Override
+            public int apply(SQLiteDatabase db) {
+                ContentValues values = new ContentValues(5);
+                values.put(COLUMN_VIDEO_ID, entry.videoId);
+                values.put(COLUMN_TITLE, entry.title);
+                values.put(COLUMN_CHANNEL_ID, entry.channelId);
+                values.put(COLUMN_IMAGE_URL, entry.imageUrl);
+                values.put(COLUMN_DURATION, entry.duration);
+                db.insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                return CHANGED_LIBRARY;
+            }
+        });
+    }
+
+    /**
+     * Move a video to the top of the recents
+     */
+    void markPlayed(final String videoId) {
+        final long playedAt = System.currentTimeMillis();
+        enqueue(new Write() {
+            @Override
+            public int apply(SQLiteDatabase db) {
+                ContentValues values = new ContentValues(2);
+                values.put(COLUMN_VIDEO_ID, videoId);
+                values.put(COLUMN_PLAYED_AT, playedAt);
+                db.insertWithOnConflict(TABLE_RECENTS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                db.execSQL("DELETE FROM " + TABLE_RECENTS + " WHERE " + COLUMN_VIDEO_ID + " NOT IN (SELECT "
+                        + COLUMN_VIDEO_ID + " FROM " + TABLE_RECENTS + " ORDER BY " + COLUMN_PLAYED_AT
+                        + " DESC LIMIT " + MAX_RECENTS + ")");
+                return CHANGED_RECENTS;
+            }
+        });
+    }
+
+    /**
+     * Append a video to a playlist, creating the playlist if needed
+     */
+    void addToPlaylist(final String playlist, final String videoId) {
+        enqueue(new Write() {
+            @Override
+            public int apply(SQLiteDatabase db) {
+                db.execSQL("INSERT INTO " + TABLE_PLAYLIST_ITEMS + " (" + COLUMN_PLAYLIST + ", " + COLUMN_POSITION
+                                + ", " + COLUMN_VIDEO_ID + ") SELECT ?, IFNULL(MAX(" + COLUMN_POSITION + ") + 1, 0), ? FROM "
+                                + TABLE_PLAYLIST_ITEMS + " WHERE " + COLUMN_PLAYLIST + " = ?",
+                        new Object[]{playlist, videoId, playlist});
+                return CHANGED_PLAYLISTS;
+            }
+        });
+    }
+
+    /**
+     * Find the metadata of a video without blocking. Answers right away if it's in memory
+     *
+     * @param callback Called on the main thread
+     */
+    void lookup(final String videoId, final LookupCallback callback) {
+        Entry cached = memory.get(videoId);
+        if (cached != null) {
+            callback.onLookup(videoId, cached);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Entry entry = get(videoId);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onLookup(videoId, entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read the most recently played videos without blocking, see {@link #getRecents()}
+     *
+     * @param limit    Max number of videos
+     * @param callback Called on the main thread
+     */
+    void loadRecentIds(final int limit, final RecentsCallback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> videoIds = new ArrayList<>();
+                for (Entry entry : getRecents()) {
+                    if (videoIds.size() == limit) break;
+                    videoIds.add(entry.videoId);
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onRecentsLoaded(videoIds);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Search the titles and channels of the library, never hits the disk.
+     * Videos are missing until the index is loaded, right after startup
+     *
+     * @param query Words to search, each one is a prefix
+     * @param limit Max number of results
+     * @return The ids of the matching videos, the best match first
+     */
+    List<String> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    /**
+     * @return The metadata of a video, null if it was never resolved
+     */
+    Entry get(String videoId) {
+        Entry entry = memory.get(videoId);
+        if (entry != null) return entry;
+        flush();
+        Cursor cursor = database.getReadableDatabase().query(TABLE_MEDIA, null,
+                COLUMN_VIDEO_ID + " = ?", new String[]{videoId}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) return null;
+            entry = readEntry(cursor);
+        } finally {
+            cursor.close();
+        }
+        memory.put(videoId, entry);
+        return entry;
+    }
+
+    /**
+     * @return The most recently played videos, the most recent first
+     */
+    List<Entry> getRecents() {
+        return queryEntries("SELECT m.* FROM " + TABLE_RECENTS + " r JOIN " + TABLE_MEDIA + " m USING ("
+                + COLUMN_VIDEO_ID + ") ORDER BY r." + COLUMN_PLAYED_AT + " DESC", null);
+    }
+
+    /**
+     * @return Every video in the library, sorted by title
+     */
+    List<Entry> getLibrary() {
+        return queryEntries("SELECT * FROM " + TABLE_MEDIA + " ORDER BY " + COLUMN_TITLE + " COLLATE NOCASE", null);
+    }
+
+    /**
+     * @return The names of the playlists, in creation order
+     */
+    List<String> getPlaylistNames() {
+        flush();
+        Cursor cursor = database.getReadableDatabase().rawQuery("SELECT " + COLUMN_PLAYLIST + " FROM "
+                + TABLE_PLAYLIST_ITEMS + " GROUP BY " + COLUMN_PLAYLIST + " ORDER BY MIN(rowid)", null);
+        try {
+            List<String> names = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) names.add(cursor.getString(0));
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The videos of a playlist, empty if there is no such playlist.
+     * Videos not in the library only have their id
+     */
+    List<Entry> getPlaylist(String playlist) {
+        return queryEntries("SELECT p." + COLUMN_VIDEO_ID + ", m." + COLUMN_TITLE + ", m." + COLUMN_CHANNEL_ID
+                + ", m." + COLUMN_IMAGE_URL + ", IFNULL(m." + COLUMN_DURATION + ", 0) AS " + COLUMN_DURATION
+                + " FROM " + TABLE_PLAYLIST_ITEMS + " p LEFT JOIN " + TABLE_MEDIA + " m USING (" + COLUMN_VIDEO_ID
+                + ") WHERE p." + COLUMN_PLAYLIST + " = ? ORDER BY p." + COLUMN_POSITION, new String[]{playlist});
+    }
+
+    /**
+     * Apply the queued writes now, instead of waiting for the scheduled flush
+     */
+    synchronized void flush() {
+        final List<Write> writes;
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty()) return;
+            writes = new ArrayList<>(pendingWrites);
+            pendingWrites.clear();
+        }
+
+        int changes = 0;
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Write write : writes) changes |= write.apply(db);
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "flush: unable to write " + writes.size() + " changes", e);
+            changes = 0;
+        } finally {
+            db.endTransaction();
+        }
+        if (changes != 0) notifyChanged(changes);
+    }
+
+    private void enqueue(Write write) {
+        boolean schedule;
+        synchronized (pendingWrites) {
+            schedule = pendingWrites.isEmpty();
+            pendingWrites.add(write);
+        }
+        if (schedule) executor.schedule(flushRunnable, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fill {@link #searchIndex} with the whole library, one video at a time so that
+     * searches and puts are never blocked for long. Runs on {@link #executor}
+     */
+    private void loadSearchIndex() {
+        long start = System.nanoTime();
+        Cursor cursor = database.getReadableDatabase().query(TABLE_MEDIA,
+                new String[]{COLUMN_VIDEO_ID, COLUMN_TITLE, COLUMN_CHANNEL_ID}, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                // the ones put while loading are already indexed, with a title at least as recent
+                searchIndex.addIfAbsent(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, "loadSearchIndex: " + searchIndex.size() + " videos in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    private List<Entry> queryEntries(String sql, String[] args) {
+        flush();
+        Cursor cursor = database.getReadableDatabase().rawQuery(sql, args);
+        try {
+            List<Entry> entries = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) entries.add(readEntry(cursor));
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Entry readEntry(Cursor cursor) {
+        return new Entry(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_VIDEO_ID)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_TITLE)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_CHANNEL_ID)),
+                cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_IMAGE_URL)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_DURATION)));
+    }
+
+    private void notifyChanged(final int changes) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) listener.onCatalogChanged(changes);
+            }
+        });
+    }
+}
@@ -5,34 +5,50 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
+import java.util.List;
+
+import le1.mediaplayback.callback.PlaybackError;
+
 /**
  * Manager of {@link MediaSessionCompat}.
  * Every action related to {@link MediaSessionCompat} passes through this class
  */
 class MediaSessionManager {
     private static final String TAG = "MediaSessionManager";
-    private static final long PLAYBACK_SPEED_NORMAL = 1;
+    private static final float PLAYBACK_SPEED_NORMAL = 1f;
 
     private final MediaSessionCompat mediaSession;
     private final PlaybackStateCompat.Builder playbackState = new PlaybackStateCompat.Builder();
+    private float playbackSpeed = PLAYBACK_SPEED_NORMAL;
+    private final PlaybackStatePublisher statePublisher;
+    /**
+     * The last metadata set, read locally instead of asking the controller for a copy
+     */
+    private MediaMetadataCompat metadata;
 
 
     /**
      * Build {@link #mediaSession} instance
      * @param context Application context
      * @param callback {@link MediaSessionCompat.Callback} of the {@link #mediaSession}
+     * @param handler Handler of the thread on which the callback is called,
+     *                the only one allowed to use this manager afterwards
      */
-    public MediaSessionManager(Context context, MediaSessionCompat.Callback callback) {
+    public MediaSessionManager(Context context, MediaSessionCompat.Callback callback, Handler handler) {
         mediaSession = new MediaSessionCompat(context.getApplicationContext(), TAG);
-        mediaSession.setCallback(callback);
+        mediaSession.setCallback(callback, handler);
+        statePublisher = new PlaybackStatePublisher(mediaSession, handler.getLooper());
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS
-                | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+                | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS
+                | MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
 
         // set supported actions. if action is not specified here it won't do anything
         // when called through mediaSession.getController().getTransportControls()
@@ -40,9 +56,13 @@ class MediaSessionManager {
                 PlaybackStateCompat.ACTION_PLAY_PAUSE |
                 PlaybackStateCompat.ACTION_PAUSE |
                 PlaybackStateCompat.ACTION_PREPARE_FROM_MEDIA_ID |
+                PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
+                PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH |
                 PlaybackStateCompat.ACTION_PREPARE |
                 PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
                 PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+                PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM |
+                PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE |
                 PlaybackStateCompat.ACTION_STOP);
     }
 
@@ -63,17 +83,64 @@ class MediaSessionManager {
      * {@link PlaybackStateCompat#STATE_SKIPPING_TO_QUEUE_ITEM}
      *
      * for further info see {@link MediaSessionCompat#setPlaybackState(PlaybackStateCompat)}
+     *
+     * The position is published together with the time of this call and the playback speed,
+     * so that controllers can extrapolate the position without asking for it again.
+     * The speed is 0 in every state but {@link PlaybackStateCompat#STATE_PLAYING}
+     *
+     * States that change nothing are dropped and bursts are merged, see {@link PlaybackStatePublisher}
+     *
+     * @param playerCurrentPosition The position in milliseconds,
+     *                              or {@link PlaybackStateCompat#PLAYBACK_POSITION_UNKNOWN}
      */
     void setPlaybackState(int state, long playerCurrentPosition) {
-        playbackState.setState(state, playerCurrentPosition, PLAYBACK_SPEED_NORMAL);
-        mediaSession.setPlaybackState(playbackState.build());
+        // the error of the last error state must not stay in the next ones
+        playbackState.setErrorMessage(PlaybackStateCompat.ERROR_CODE_UNKNOWN_ERROR, null);
+        float speed = state == PlaybackStateCompat.STATE_PLAYING ? playbackSpeed : 0f;
+        playbackState.setState(state, playerCurrentPosition, speed, SystemClock.elapsedRealtime());
+        statePublisher.submit(playbackState.build());
+    }
+
+    /**
+     * Publish {@link PlaybackStateCompat#STATE_ERROR} with an error code
+     * @param errorCode One of the {@link PlaybackError} codes
+     */
+    void setPlaybackError(int errorCode) {
+        playbackState.setState(PlaybackStateCompat.STATE_ERROR, -1, 0f, SystemClock.elapsedRealtime());
+        playbackState.setErrorMessage(errorCode, null);
+        statePublisher.submit(playbackState.build());
+    }
+
+    /**
+     * Set the buffered position published with the next {@link #setPlaybackState(int, long)}
+     * @param bufferedPosition in milliseconds
+     */
+    void setBufferedPosition(long bufferedPosition) {
+        playbackState.setBufferedPosition(bufferedPosition);
+    }
+
+    /**
+     * Set the speed published with the next {@link #setPlaybackState(int, long)} while playing
+     * @param playbackSpeed The speed, 1 being the normal one
+     */
+    void setPlaybackSpeed(float playbackSpeed) {
+        this.playbackSpeed = playbackSpeed;
     }
 
     /**
-     * @return Current playback state. see {@link #setPlaybackState(int, long)}
+     * Can be called from any thread
+     * @return Current playback state, even if not published yet. see {@link #setPlaybackState(int, long)}
      */
     int getPlaybackState() {
-        return mediaSession.getController().getPlaybackState().getState();
+        PlaybackStateCompat state = statePublisher.getLatest();
+        return state == null ? PlaybackStateCompat.STATE_NONE : state.getState();
+    }
+
+    /**
+     * @return The publisher of the playback states, to monitor how many were published or suppressed
+     */
+    PlaybackStatePublisher getStatePublisher() {
+        return statePublisher;
     }
 
 
@@ -90,27 +157,49 @@ class MediaSessionManager {
      * @param title The title of the track
      * @param id The YouTube id of this track
      * @param artist Author or YouTube channel that uploaded the video
-     * @param art Bitmap of the album/video art, keep this image at a maximum of 4000x4000
+     * @param art Bitmap of the album/video art, already downsampled, see {@link ArtworkLoader}
      * @param artUri Uri of the album/video art, useful to get higher resolution image
      * @param duration The duration of the track, in seconds
      */
     void setMetadata(String title, String id, String artist, Bitmap art, String artUri, long duration) {
-        MediaMetadataCompat.Builder metadata = new MediaMetadataCompat.Builder()
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
                 .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, id)
                 .putBitmap(MediaMetadataCompat.METADATA_KEY_ART, art)
                 .putString(MediaMetadataCompat.METADATA_KEY_ART_URI, artUri)
                 .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
-        mediaSession.setMetadata(metadata.build());
-
+        metadata = builder.build();
+        mediaSession.setMetadata(metadata);
     }
 
     /**
      * @return Metadata of current track
      */
     MediaMetadataCompat getMetadata() {
-        return mediaSession.getController().getMetadata();
+        return metadata;
+    }
+
+    /**
+     * @see MediaSessionCompat#setQueue(List)
+     */
+    void setQueue(List<MediaSessionCompat.QueueItem> queue) {
+        mediaSession.setQueue(queue);
+    }
+
+    /**
+     * @see MediaSessionCompat#setShuffleMode(int)
+     */
+    void setShuffleMode(int shuffleMode) {
+        mediaSession.setShuffleMode(shuffleMode);
+    }
+
+    /**
+     * Set the queue item being played. Published with the next {@link #setPlaybackState(int, long)}
+     * @param queueItemId The {@link MediaSessionCompat.QueueItem#getQueueId()} of the item
+     */
+    void setActiveQueueItemId(long queueItemId) {
+        playbackState.setActiveQueueItemId(queueItemId);
     }
 
     /**
@@ -154,6 +243,7 @@ class MediaSessionManager {
      * @see MediaSessionCompat#release()
      */
     void destroy() {
+        statePublisher.release();
         mediaSession.release();
     }
 
@@ -11,6 +11,7 @@ import android.support.v4.app.NotificationCompat.Action;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaButtonReceiver;
+import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.app.NotificationCompat.Builder;
 import android.support.v4.media.app.NotificationCompat.MediaStyle;
@@ -25,139 +26,223 @@ public class MusicNotification {
     private static final String CHANNEL_ID = "music";
     private static final String TAG = ("LE1_" + MusicNotification.class.getSimpleName());
 
-    private static Action fastForwardAction = null;
-    private static Action playPauseAction = null;
-    private static Action rewindAction = null;
-    private static Action skipToNextAction = null;
-    private static Action skipToPreviousAction = null;
+    /**
+     * Actions, intents and icon never change, so they are built once. See {@link #ensureResources(Context)}
+     */
+    private static Action playAction;
+    private static Action pauseAction;
+    private static Action skipToPreviousAction;
+    private static Action skipToNextAction;
+    private static Action rewindAction;
+    private static Action fastForwardAction;
+    private static Action[] disabledActions;
+    private static PendingIntent contentIntent;
+    private static PendingIntent stopIntent;
+    private static Bitmap fallbackImage;
+
+    /**
+     * What the last posted notification shows, null if there is none
+     */
+    private static Model lastPosted;
+
+    private static int updateCount;
+    private static int postCount;
+
+    /**
+     * Everything visible in the notification. Two equal models produce the same notification
+     */
+    private static class Model {
+        final int state;
+        final String title;
+        final String artist;
+        final String subText;
+        final Bitmap image;
+        final MediaSessionCompat.Token token;
+
+        Model(int state, String title, String artist, String subText, Bitmap image, MediaSessionCompat.Token token) {
+            this.state = state;
+            this.title = title;
+            this.artist = artist;
+            this.subText = subText;
+            this.image = image;
+            this.token = token;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Model)) return false;
+            Model m = (Model) o;
+            // bitmaps are compared by identity, decoding the same art twice gives a new bitmap anyway
+            return state == m.state && image == m.image
+                    && equal(title, m.title) && equal(artist, m.artist) && equal(subText, m.subText)
+                    && equal(token, m.token);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = state;
+            result = 31 * result + (title != null ? title.hashCode() : 0);
+            result = 31 * result + (artist != null ? artist.hashCode() : 0);
+            result = 31 * result + (subText != null ? subText.hashCode() : 0);
+            return result;
+        }
 
-    private static int state;
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
 
     /**
      * Build and Update the notification based on the playback state
      * Should be called after every {@link MediaSessionManager#setPlaybackState(int, long)} call.
+     * Nothing is posted if the notification would look the same as the last one
      *
      * @param context      Application context
      * @param service      The music service tied to the notification
      * @param mediaSession The {@link MediaSessionManager} tied to the music service
      */
     static void updateNotification(Context context, Service service, MediaSessionManager mediaSession) {
-        MusicNotification.state = mediaSession.getPlaybackState();
-        Builder builder = new Builder(context, CHANNEL_ID);
+        updateCount++;
+        int state = mediaSession.getPlaybackState();
+        if (state == PlaybackStateCompat.STATE_NONE || state == PlaybackStateCompat.STATE_STOPPED) {
+            if (lastPosted != null) {
+                service.stopForeground(true);
+                lastPosted = null;
+            }
+            return;
+        }
+        if (state != PlaybackStateCompat.STATE_PLAYING && state != PlaybackStateCompat.STATE_PAUSED
+                && state != PlaybackStateCompat.STATE_BUFFERING && state != PlaybackStateCompat.STATE_ERROR)
+            return;
+
+        ensureResources(context);
+        Model model = buildModel(state, mediaSession);
+        if (model.equals(lastPosted)) return;
+
+        post(context, service, model);
+        lastPosted = model;
+    }
+
+    /**
+     * @return How many times {@link #updateNotification(Context, Service, MediaSessionManager)} was called
+     */
+    static int getUpdateCount() {
+        return updateCount;
+    }
+
+    /**
+     * @return How many notifications were actually built and posted
+     */
+    static int getPostCount() {
+        return postCount;
+    }
+
+    private static Model buildModel(int state, MediaSessionManager mediaSession) {
+        switch (state) {
+            case PlaybackStateCompat.STATE_BUFFERING:
+                MediaMetadataCompat loading = mediaSession.getMetadata();
+                String loadingTitle = loading == null ? null : loading.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
+                if (loadingTitle == null)
+                    return new Model(state, "loading", "loading", "loading", fallbackImage, mediaSession.getToken());
+                // the title is known from the catalog before the video is resolved
+                Bitmap loadingImage = loading.getBitmap(MediaMetadataCompat.METADATA_KEY_ART);
+                return new Model(state, loadingTitle, loading.getString(MediaMetadataCompat.METADATA_KEY_ARTIST),
+                        "loading", loadingImage != null ? loadingImage : fallbackImage, mediaSession.getToken());
+            case PlaybackStateCompat.STATE_ERROR:
+                return new Model(state, "error", "error", "error", fallbackImage, mediaSession.getToken());
+        }
 
         Bitmap image = null;
         String title = null;
         String artist = null;
         String mediaId = null;
-        if (mediaSession.getMetadata() != null) {
-            image = mediaSession.getMetadata().getBitmap(MediaMetadataCompat.METADATA_KEY_ART);
-            if (image==null) image = BitmapFactory.decodeResource(context.getResources(),
-                    R.mipmap.ic_launcher);
+        MediaMetadataCompat metadata = mediaSession.getMetadata();
+        if (metadata != null) {
+            image = metadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ART);
+            if (image == null) image = fallbackImage;
 
-            title =  mediaSession.getMetadata().getString(MediaMetadataCompat.METADATA_KEY_TITLE);
-            if (title==null){
+            title = metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
+            if (title == null) {
                 title = "error getting title";
             }
 
-            artist =  mediaSession.getMetadata().getString(MediaMetadataCompat.METADATA_KEY_ARTIST);
-            if (artist==null){
+            artist = metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST);
+            if (artist == null) {
                 artist = "error getting artist";
             }
 
-            mediaId =  mediaSession.getMetadata().getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-            if (mediaId==null){
+            mediaId = metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (mediaId == null) {
                 mediaId = "error getting id";
             }
         }
+        return new Model(state, title, artist, mediaId, image, mediaSession.getToken());
+    }
 
-
-        switch (state) {
-            case PlaybackStateCompat.STATE_PAUSED:
-                updateButtons(context, true);
-                builder.setContentTitle(title)
-                        .setContentText(artist)
-                        .setSubText(mediaId);
-                break;
-            case PlaybackStateCompat.STATE_PLAYING:
-                updateButtons(context, true);
-                builder.setContentTitle(title)
-                        .setContentText(artist)
-                        .setSubText(mediaId);
-                break;
-            case PlaybackStateCompat.STATE_BUFFERING:
-                updateButtons(context, false);
-                builder.setContentTitle("loading")
-                        .setContentText("loading")
-                        .setSubText("loading");
-                break;
-            case PlaybackStateCompat.STATE_ERROR:
-                updateButtons(context, false);
-                builder.setContentTitle("error")
-                        .setContentText("error")
-                        .setSubText("error");
-                break;
-            case PlaybackStateCompat.STATE_NONE:
-                service.stopForeground(true);
-                return;
-            case PlaybackStateCompat.STATE_STOPPED:
-                service.stopForeground(true);
-                return;
-            default:
-                return;
-        }
-
-        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, new Intent(context, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
-
-        builder.setContentIntent(contentIntent)
-                .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_STOP))
+    private static void post(Context context, Service service, Model model) {
+        Builder builder = new Builder(context, CHANNEL_ID)
+                .setContentTitle(model.title)
+                .setContentText(model.artist)
+                .setSubText(model.subText)
+                .setContentIntent(contentIntent)
+                .setDeleteIntent(stopIntent)
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
                 .setSmallIcon(R.drawable.ic_notification_icon)
-                .setLargeIcon(image)
+                .setLargeIcon(model.image)
                 .setColor(ContextCompat.getColor(context, R.color.colorPrimaryDark))
                 .setShowWhen(false)
-                .addAction(rewindAction)
-                .addAction(skipToPreviousAction)
-                .addAction(playPauseAction)
-                .addAction(skipToNextAction)
-                .addAction(fastForwardAction)
                 .setStyle(new MediaStyle()
-                        .setMediaSession(mediaSession
-                                .getToken())
+                        .setMediaSession(model.token)
                         .setShowActionsInCompactView(1, 2, 3)
                         .setShowCancelButton(true)
-                        .setCancelButtonIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_STOP)));
+                        .setCancelButtonIntent(stopIntent));
+
+        if (model.state == PlaybackStateCompat.STATE_PLAYING || model.state == PlaybackStateCompat.STATE_PAUSED) {
+            builder.addAction(rewindAction)
+                    .addAction(skipToPreviousAction)
+                    .addAction(model.state == PlaybackStateCompat.STATE_PLAYING ? pauseAction : playAction)
+                    .addAction(skipToNextAction)
+                    .addAction(fastForwardAction);
+        } else {
+            for (Action action : disabledActions) builder.addAction(action);
+        }
 
+        postCount++;
+        Log.d(TAG, "post: " + model.state + " " + model.subText);
         service.startForeground(NOTIFICATION_ID, builder.build());
 
         // if paused or error we want the notification to be visible but dismissible
-        if (state == PlaybackStateCompat.STATE_PAUSED || state == PlaybackStateCompat.STATE_ERROR)
+        if (model.state == PlaybackStateCompat.STATE_PAUSED || model.state == PlaybackStateCompat.STATE_ERROR)
             service.stopForeground(false);
     }
 
     /**
-     * Enable or disable notification buttons, and update notification icons accordingly
+     * Build the actions, intents and fallback icon the first time they are needed
      *
-     * @param context Application context
-     * @param enabled Whether the buttons are enabled or not
+     * @param context Any context, only its application context is kept
      */
-    private static void updateButtons(Context context, boolean enabled) {
-        if (enabled) {
-            if (state == PlaybackStateCompat.STATE_PLAYING) {
-                playPauseAction = new Action(R.drawable.ic_pause_black_24dp, "play", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_PLAY_PAUSE));
-            } else {
-                playPauseAction = new Action(R.drawable.ic_play_arrow_black_24dp, "pause", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_PLAY_PAUSE));
-            }
-            skipToPreviousAction = new Action(R.drawable.ic_skip_previous_black_24dp, "previous", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
-            skipToNextAction = new Action(R.drawable.ic_skip_next_black_24dp, "next", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_SKIP_TO_NEXT));
-            rewindAction = new Action(R.drawable.ic_fast_rewind_black_24dp, "rewind", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_REWIND));
-            fastForwardAction = new Action(R.drawable.ic_fast_forward_black_24dp, "fast forward", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_FAST_FORWARD));
-
-        } else {
-            playPauseAction = new Action(R.drawable.ic_play_arrow_disabled_24dp, "play", null);
-            skipToPreviousAction = new Action(R.drawable.ic_skip_previous_disabled_24dp, "previous", null);
-            skipToNextAction = new Action(R.drawable.ic_skip_next_disabled_24dp, "next", null);
-            rewindAction = new Action(R.drawable.ic_fast_rewind_disabled_24dp, "rewind", null);
-            fastForwardAction = new Action(R.drawable.ic_fast_forward_disabled_24dp, "fast forward", null);
-        }
+    private static void ensureResources(Context context) {
+        if (playAction != null) return;
+        context = context.getApplicationContext();
+
+        PendingIntent playPauseIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_PLAY_PAUSE);
+        playAction = new Action(R.drawable.ic_play_arrow_black_24dp, "play", playPauseIntent);
+        pauseAction = new Action(R.drawable.ic_pause_black_24dp, "pause", playPauseIntent);
+        skipToPreviousAction = new Action(R.drawable.ic_skip_previous_black_24dp, "previous", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS));
+        skipToNextAction = new Action(R.drawable.ic_skip_next_black_24dp, "next", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_SKIP_TO_NEXT));
+        rewindAction = new Action(R.drawable.ic_fast_rewind_black_24dp, "rewind", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_REWIND));
+        fastForwardAction = new Action(R.drawable.ic_fast_forward_black_24dp, "fast forward", MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_FAST_FORWARD));
+        disabledActions = new Action[]{
+                new Action(R.drawable.ic_fast_rewind_disabled_24dp, "rewind", null),
+                new Action(R.drawable.ic_skip_previous_disabled_24dp, "previous", null),
+                new Action(R.drawable.ic_play_arrow_disabled_24dp, "play", null),
+                new Action(R.drawable.ic_skip_next_disabled_24dp, "next", null),
+                new Action(R.drawable.ic_fast_forward_disabled_24dp, "fast forward", null)
+        };
+
+        contentIntent = PendingIntent.getActivity(context, 0, new Intent(context, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        stopIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(context, PlaybackStateCompat.ACTION_STOP);
+        fallbackImage = BitmapFactory.decodeResource(context.getResources(), R.mipmap.ic_launcher);
     }
-}
\ No newline at end of file
+}
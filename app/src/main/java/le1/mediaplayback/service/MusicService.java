@@ -1,17 +1,20 @@
 package le1.mediaplayback.service;
 
 import android.content.Intent;
-import android.net.Uri;
+import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
-import android.util.SparseArray;
 import android.widget.Toast;
 
 import com.google.android.exoplayer2.ExoPlaybackException;
@@ -21,20 +24,24 @@ import com.google.android.exoplayer2.Timeline;
 import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 
+import java.util.ArrayList;
 import java.util.List;
 
-import at.huber.youtubeExtractor.VideoMeta;
-import at.huber.youtubeExtractor.YouTubeExtractor;
-import at.huber.youtubeExtractor.YtFile;
+import le1.mediaplayback.BufferProfile;
 import le1.mediaplayback.MusicControl;
 import le1.mediaplayback.application.AppLifecycleObserver;
 import le1.mediaplayback.callback.AudioFocusCallback;
+import le1.mediaplayback.callback.PlaybackError;
 import le1.mediaplayback.application.MediaPlaybackApplication;
 
 /**
  * The service used for playback.
  * It starts when the app launches in {@link AppLifecycleObserver#onResume()},
- * and stops when no activity is on the recents screen (or in foreground) and no music is playing
+ * and stops when no activity is on the recents screen (or in foreground) and no music is playing.
+ * <p>
+ * The session callbacks, the player events and everything they touch (queue, published state, notification)
+ * run on the playback thread, see {@link PlayerManager#getPlaybackLooper()}.
+ * Only the browser callbacks and UI feedback like toasts run on the main thread
  */
 public class MusicService extends MediaBrowserServiceCompat{
 
@@ -44,29 +51,125 @@ public class MusicService extends MediaBrowserServiceCompat{
     private MediaButtonManager mediaButtonReceiver;
     private AudioFocusManager audioFocus;
     private PlayerManager player;
+    private StreamCache streamCache;
+    private ArtworkLoader artworkLoader;
+    private MediaCatalog catalog;
+    private BrowseTree browseTree;
+    private ExtractionCoordinator extractionCoordinator;
+    /**
+     * Handler of the playback thread
+     */
+    private Handler playbackHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final FormatRanker formatRanker = new FormatRanker();
+    private final PlayQueue queue = new PlayQueue();
+
+    /**
+     * The media enqueued in the {@link #player} after the current one,
+     * its metadata is published when the player moves to it
+     */
+    private ResolvedMedia enqueuedMedia;
+
+    /**
+     * Given with the command that started the current queue, e.g. {@link MediaSessionCompat.Callback#onPrepareFromMediaId(String, Bundle)},
+     * used for every track of the queue. Reset by every new queue, null to let the {@link #player} choose
+     */
+    private BufferProfile bufferProfile;
+
+    /**
+     * Skipping to previous restarts the current item instead, if it has been playing for longer than this
+     */
+    private static final long RESTART_THRESHOLD_MS = 3000;
+
+    /**
+     * How many items around the current one are published with {@link MediaSessionManager#setQueue(List)}.
+     * Publishing the whole queue could exceed the Binder transaction limit
+     */
+    private static final int QUEUE_WINDOW_BEFORE = 25;
+    private static final int QUEUE_WINDOW_AFTER = 75;
+
+    /**
+     * Max number of results of {@link #onSearch(String, Bundle, Result)}, and of items queued by a search
+     */
+    private static final int SEARCH_LIMIT = 50;
+
+    /**
+     * Root hint telling Android Auto that {@link #onSearch(String, Bundle, Result)} is supported
+     */
+    private static final String EXTRA_SEARCH_SUPPORTED = "android.media.browse.SEARCH_SUPPORTED";
 
     /**
-     * Does all the setup and sets the PlaybackState to {@link PlaybackStateCompat#STATE_NONE}
+     * Extra of the start intent with a media id that is about to be prepared.
+     * Its extraction starts right away, without waiting for the client to connect
+     */
+    public static final String EXTRA_PREFETCH_MEDIA_ID = "le1.mediaplayback.PREFETCH_MEDIA_ID";
+
+    /**
+     * Does all the setup and sets the PlaybackState to {@link PlaybackStateCompat#STATE_NONE}.
+     * Only what's needed to accept a connection is built here, the player is built
+     * by {@link PlayerManager#prewarm()} once the main thread is idle, or by the first track prepared
      */
     @Override
     public void onCreate() {
         super.onCreate();
-        mediaSession = new MediaSessionManager(this, mediaSessionCallback);
+        player = PlayerManager.getInstance(this);
+        playbackHandler = new Handler(PlayerManager.getPlaybackLooper());
+
+        long start = StartupTrace.begin();
+        mediaSession = new MediaSessionManager(this, mediaSessionCallback, playbackHandler);
         setSessionToken(mediaSession.getToken());
-        mediaSession.setPlaybackState(PlaybackStateCompat.STATE_NONE, -1);
         mediaButtonReceiver = new MediaButtonManager(this, mediaSession);
+        StartupTrace.end("session", start);
+
+        start = StartupTrace.begin();
         audioFocus = new AudioFocusManager(this, audioFocusCallback);
-        player = PlayerManager.getInstance(this);
-        player.addEventListener(playerListener);
-        Toast.makeText(this, "onCreate", Toast.LENGTH_SHORT).show();
+        streamCache = StreamCache.getInstance(this);
+        extractionCoordinator = new ExtractionCoordinator(new YouTubeStreamResolver(this), streamCache, playbackHandler);
+        StartupTrace.end("extraction", start);
+
+        start = StartupTrace.begin();
+        artworkLoader = ArtworkLoader.getInstance(this);
+        catalog = MediaCatalog.getInstance(this);
+        catalog.addListener(catalogListener);
+        browseTree = new BrowseTree(catalog, queue, playbackHandler);
+        StartupTrace.end("catalog", start);
+
+        playbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mediaSession.setPlaybackState(PlaybackStateCompat.STATE_NONE, -1);
+                player.addEventListener(playerListener);
+            }
+        });
+        player.prewarm();
+        showToast("onCreate");
+    }
+
+    /**
+     * Show a toast from any thread
+     */
+    private void showToast(final String text) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(MusicService.this, text, Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     /**
      * Calls {@link MediaButtonReceiver#handleIntent(MediaSessionCompat, Intent)}
-     * to forward any media buttons clicks to the appropriate {@link MediaSessionCompat.Callback} method
+     * to forward any media buttons clicks to the appropriate {@link MediaSessionCompat.Callback} method.
+     * Starts extracting the media in {@link #EXTRA_PREFETCH_MEDIA_ID} if any, the following
+     * {@link ExtractionCoordinator#request(String, ExtractionCoordinator.Callback)} joins it
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        String prefetchMediaId = intent == null ? null : intent.getStringExtra(EXTRA_PREFETCH_MEDIA_ID);
+        if (prefetchMediaId != null) {
+            Log.d(TAG, "onStartCommand: prefetching " + prefetchMediaId);
+            extractionCoordinator.prefetch(prefetchMediaId, null);
+        }
         mediaButtonReceiver.handleIntent(intent);
         return super.onStartCommand(intent, flags, startId);
     }
@@ -74,14 +177,52 @@ public class MusicService extends MediaBrowserServiceCompat{
     @Nullable
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid, @Nullable Bundle rootHints) {
-        return new BrowserRoot("rootId", null);
+        Bundle extras = new Bundle();
+        extras.putBoolean(EXTRA_SEARCH_SUPPORTED, true);
+        return new BrowserRoot(BrowseTree.ROOT, extras);
+    }
+
+    @Override
+    public void onSearch(@NonNull String query, Bundle extras, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        browseTree.search(query, SEARCH_LIMIT, result);
+    }
+
+    @Override
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
+        browseTree.loadChildren(parentId, result, null);
     }
 
+    /**
+     * Paged version, used by clients passing {@link MediaBrowserCompat#EXTRA_PAGE} and {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}
+     */
     @Override
-    public void onLoadChildren(@NonNull String rootId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(null);
+    public void onLoadChildren(@NonNull String parentId, @NonNull Result<List<MediaBrowserCompat.MediaItem>> result, @NonNull Bundle options) {
+        browseTree.loadChildren(parentId, result, options);
     }
 
+    /**
+     * Invalidates the {@link #browseTree} nodes affected by a catalog change and tells the browsers to reload them
+     */
+    private MediaCatalog.Listener catalogListener = new MediaCatalog.Listener() {
+        @Override
+        public void onCatalogChanged(int changes) {
+            if ((changes & MediaCatalog.CHANGED_LIBRARY) != 0) {
+                // titles may have changed everywhere
+                browseTree.invalidate(BrowseTree.LIBRARY);
+                browseTree.invalidatePlaylists();
+                notifyChildrenChanged(BrowseTree.LIBRARY);
+            }
+            if ((changes & (MediaCatalog.CHANGED_RECENTS | MediaCatalog.CHANGED_LIBRARY)) != 0) {
+                browseTree.invalidate(BrowseTree.RECENTS);
+                notifyChildrenChanged(BrowseTree.RECENTS);
+            }
+            if ((changes & MediaCatalog.CHANGED_PLAYLISTS) != 0) {
+                browseTree.invalidatePlaylists();
+                notifyChildrenChanged(BrowseTree.PLAYLISTS);
+            }
+        }
+    };
+
     /**
      * Callback that actually controls the playback.
      * Every playback command ends here in a way or another.
@@ -91,7 +232,42 @@ public class MusicService extends MediaBrowserServiceCompat{
     private MediaSessionCompat.Callback mediaSessionCallback = new MediaSessionCompat.Callback() {
 
         /**
-         * Starts preparing and then starts playing with {@link MusicControl#play()}
+         * Used by voice search and Android Auto: replaces the queue with the videos of the catalog matching the query,
+         * the best match first. An empty query means "play anything", the recents are played then
+         */
+        @Override
+        public void onPlayFromSearch(final String query, Bundle extras) {
+            super.onPlayFromSearch(query, extras);
+            Log.d(TAG, "onPlayFromSearch: " + query);
+            final BufferProfile profile = bufferProfileOf(extras);
+            if (query != null && !query.trim().isEmpty()) {
+                playSearchResults(catalog.search(query, SEARCH_LIMIT), profile);
+                return;
+            }
+            // the recents are read from disk
+            catalog.loadRecentIds(SEARCH_LIMIT, new MediaCatalog.RecentsCallback() {
+                @Override
+                public void onRecentsLoaded(final List<String> videoIds) {
+                    playbackHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            playSearchResults(videoIds, profile);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Used by browsers like Android Auto, same as {@link #onPrepareFromMediaId(String, Bundle)}
+         */
+        @Override
+        public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            onPrepareFromMediaId(mediaId, extras);
+        }
+
+        /**
+         * Replaces the queue with this media, starts preparing and then starts playing with {@link MusicControl#play()}
          */
         @Override
         public void onPrepareFromMediaId(String youTubeId, Bundle extras) {
@@ -99,34 +275,101 @@ public class MusicService extends MediaBrowserServiceCompat{
             Log.d(TAG, "onPrepare");
             //we want a fresh start if music it's already playing
             if (mediaSession.getPlaybackState() == PlaybackStateCompat.STATE_PLAYING) {
-                ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().stop();
+                player.stop();
             }
+            bufferProfile = bufferProfileOf(extras);
+            queue.reset(youTubeId);
+            prepareCurrentQueueItem();
+        }
 
-            //we set the playback state to STATE_BUFFERING before extracting the youtube song
-            mediaSession.setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, -1);
-            MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
-
+        /**
+         * Appends a media to the queue. If it's the next one, it starts loading right away
+         */
+        @Override
+        public void onAddQueueItem(MediaDescriptionCompat description) {
+            super.onAddQueueItem(description);
+            boolean wasEmpty = queue.size() == 0;
+            queue.add(description.getMediaId());
+            if (wasEmpty) {
+                // a new queue, the profile of the previous one doesn't apply
+                bufferProfile = null;
+                prepareCurrentQueueItem();
+            }
+            else onQueueChanged();
+        }
 
-            new YouTubeExtractor(MusicService.this) {
-                @Override
-                protected void onExtractionComplete(SparseArray<YtFile> itags, VideoMeta videoMeta) {
-                    if (itags != null) {
-                        Log.d(TAG, "onExtractionComplete: " + videoMeta.getVideoLength());
-                        mediaSession.setMetadata(videoMeta.getTitle(), videoMeta.getVideoId(), videoMeta.getChannelId(), null, videoMeta.getMaxResImageUrl(), videoMeta.getVideoLength() * 1000);
-                        //actually prepare the player
-                        player.prepare(Uri.parse(itags.get(140).getUrl()), Uri.parse(itags.get(160).getUrl()));
-                        //after preparing start playing
-                        ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().play();
-                    } else {
-                        mediaSession.setPlaybackState(PlaybackStateCompat.STATE_ERROR, -1);
-                        MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
-                        Toast.makeText(MusicService.this, "itag null", Toast.LENGTH_SHORT).show();
-                        Log.e(TAG, "onExtractionComplete: itags is null");
-                    }
+        /**
+         * Handles {@link MusicControl#ACTION_ADD_QUEUE_ITEMS}, used to append many items with a single call
+         */
+        @Override
+        public void onCustomAction(String action, Bundle extras) {
+            super.onCustomAction(action, extras);
+            if (MusicControl.ACTION_ADD_QUEUE_ITEMS.equals(action)) {
+                ArrayList<String> mediaIds = extras.getStringArrayList(MusicControl.EXTRA_MEDIA_IDS);
+                if (mediaIds == null) return;
+                boolean wasEmpty = queue.size() == 0;
+                queue.addAll(mediaIds);
+                if (wasEmpty) {
+                    bufferProfile = null;
+                    prepareCurrentQueueItem();
                 }
+                else onQueueChanged();
+            } else if (MusicControl.ACTION_SCRUB_TO.equals(action)) {
+                player.scrubTo(extras.getLong(MusicControl.EXTRA_POSITION));
+            } else if (MusicControl.ACTION_WARM_UP.equals(action)) {
+                ArrayList<String> mediaIds = extras.getStringArrayList(MusicControl.EXTRA_MEDIA_IDS);
+                if (mediaIds != null) warmUp(mediaIds);
             }
-                    //actually extract the YouTube song. Method called at object creation
-                    .extract("https://www.youtube.com/watch?v=" + youTubeId, true, true);
+        }
+
+        /**
+         * Enables or disables shuffle, the current item keeps playing
+         */
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            super.onSetShuffleMode(shuffleMode);
+            queue.setShuffled(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mediaSession.setShuffleMode(queue.isShuffled()
+                    ? PlaybackStateCompat.SHUFFLE_MODE_ALL : PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mediaSession.setActiveQueueItemId(queue.getCurrentIndex());
+            onQueueChanged();
+        }
+
+        /**
+         * Moves to the next item of the queue, without any gap if it's already loaded in the player
+         */
+        @Override
+        public void onSkipToNext() {
+            super.onSkipToNext();
+            if (!queue.hasNext()) return;
+            // the player moves to the enqueued media, onPositionDiscontinuity() updates the queue
+            if (queue.peekNext().equals(player.getEnqueuedMediaId()) && player.skipToEnqueued()) return;
+            queue.setCurrentIndex(queue.getCurrentIndex() + 1);
+            prepareCurrentQueueItem();
+        }
+
+        /**
+         * Moves to the previous item of the queue,
+         * or restarts the current one if it has been playing for more than {@link #RESTART_THRESHOLD_MS}
+         */
+        @Override
+        public void onSkipToPrevious() {
+            super.onSkipToPrevious();
+            if (!queue.hasPrevious() || player.getCurrentPosition() > RESTART_THRESHOLD_MS) {
+                player.seekTo(0);
+                return;
+            }
+            queue.setCurrentIndex(queue.getCurrentIndex() - 1);
+            prepareCurrentQueueItem();
+        }
+
+        /**
+         * @param id The {@link MediaSessionCompat.QueueItem#getQueueId()} of the item to play
+         */
+        @Override
+        public void onSkipToQueueItem(long id) {
+            super.onSkipToQueueItem(id);
+            if (queue.setCurrentIndex((int) id)) prepareCurrentQueueItem();
         }
 
 
@@ -159,30 +402,279 @@ public class MusicService extends MediaBrowserServiceCompat{
         @Override
         public void onStop() {
             super.onStop();
+            extractionCoordinator.cancelRequests();
             player.stop();
             audioFocus.abandonAudioFocus();
             mediaSession.setInactive();
 
             // sometime the notification is swiped while the app is not in the recent task
             // in this case we want to stop the service
-            if (!MediaPlaybackApplication.isAppOpen())
-                ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().disconnect();
+            if (!MediaPlaybackApplication.isAppOpen()) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().disconnect();
+                    }
+                });
+            }
 
         }
 
 
         /**
          * Seeks to a different position in the same media
-         * @param pos The position in seconds
+         * @param pos The position in milliseconds
          */
         @Override
         public void onSeekTo(long pos) {
             super.onSeekTo(pos);
-            Log.d(TAG, "onSeekTo: " + (int) pos);
-            player.seekTo((int) pos);
+            Log.d(TAG, "onSeekTo: " + pos);
+            player.seekTo(pos);
+        }
+    };
+
+    /**
+     * Receives the result of the last {@link ExtractionCoordinator#request(String, ExtractionCoordinator.Callback)},
+     * results of superseded requests never get here
+     */
+    private ExtractionCoordinator.Callback extractionCallback = new ExtractionCoordinator.Callback() {
+        @Override
+        public void onResolved(ResolvedMedia media) {
+            Log.d(TAG, "onResolved: " + media.duration);
+            prepareAndPlay(media);
+        }
+
+        @Override
+        public void onError(String mediaId) {
+            mediaSession.setPlaybackError(PlaybackError.ERROR_CODE_UNRESOLVABLE);
+            MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
+            showToast("itag null");
+            Log.e(TAG, "onError: unable to resolve " + mediaId);
+        }
+    };
+
+    /**
+     * Receives the media resolved by {@link #preloadNextQueueItem()}
+     */
+    private ExtractionCoordinator.Callback preloadCallback = new ExtractionCoordinator.Callback() {
+        @Override
+        public void onResolved(ResolvedMedia media) {
+            catalog.put(media);
+            // the queue may have changed in the meantime
+            if (!media.videoId.equals(queue.peekNext())) return;
+            FormatRanker.Selection selection = formatRanker.select(media, player.getBitrateEstimate(), player.getPlayerViewHeight());
+            if (selection == null) return;
+            Log.d(TAG, "preload: enqueuing " + media.videoId);
+            player.enqueue(media, selection.audio, selection.video);
+            enqueuedMedia = media;
+        }
+
+        @Override
+        public void onError(String mediaId) {
+            // it will be extracted again when it becomes the current item
+            Log.e(TAG, "preload: unable to resolve " + mediaId);
+        }
+    };
+
+    /**
+     * Receives the media resolved by {@link #warmUp(List)}
+     */
+    private ExtractionCoordinator.Callback warmUpCallback = new ExtractionCoordinator.Callback() {
+        @Override
+        public void onResolved(ResolvedMedia media) {
+            catalog.put(media);
+            // picked in the meantime
+            if (media.videoId.equals(queue.getCurrent())) return;
+            FormatRanker.Selection selection = formatRanker.select(media, player.getBitrateEstimate(), player.getPlayerViewHeight());
+            if (selection == null) return;
+            player.warm(media, selection.audio, selection.video);
+        }
+
+        @Override
+        public void onError(String mediaId) {
+            Log.e(TAG, "warmUp: unable to resolve " + mediaId);
         }
     };
 
+    /**
+     * Resolve the most likely candidates and buffer them in the warm players of the {@link #player}
+     *
+     * @param mediaIds The candidates, the most likely first
+     */
+    private void warmUp(List<String> mediaIds) {
+        int count = Math.min(mediaIds.size(), player.getMaxWarmPlayers());
+        // the least likely first, so that the most likely is the last one evicted
+        for (int i = count - 1; i >= 0; i--) {
+            String mediaId = mediaIds.get(i);
+            if (mediaId.equals(queue.getCurrent()) || player.isWarm(mediaId)) continue;
+            extractionCoordinator.prefetch(mediaId, warmUpCallback);
+        }
+    }
+
+    /**
+     * @param extras The extras of a command starting a new queue, can be null
+     * @return The {@link MusicControl#EXTRA_BUFFER_PROFILE} in them, null if missing or unknown
+     */
+    private static BufferProfile bufferProfileOf(Bundle extras) {
+        String profileName = extras == null ? null : extras.getString(MusicControl.EXTRA_BUFFER_PROFILE);
+        if (profileName == null) return null;
+        try {
+            return BufferProfile.valueOf(profileName);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "bufferProfileOf: unknown buffer profile " + profileName);
+            return null;
+        }
+    }
+
+    /**
+     * Publish the new queue and start loading what should play next
+     */
+    private void onQueueChanged() {
+        publishQueue();
+        preloadNextQueueItem();
+    }
+
+    /**
+     * Replace the {@link #queue} with the results of a search and start playing the first one,
+     * the best match. If shuffle is enabled it only applies to the results after it
+     *
+     * @param profile The buffer profile of the new queue, null for the default one
+     */
+    private void playSearchResults(List<String> videoIds, BufferProfile profile) {
+        if (videoIds.isEmpty()) {
+            showToast("nothing found");
+            return;
+        }
+        if (mediaSession.getPlaybackState() == PlaybackStateCompat.STATE_PLAYING) player.stop();
+        bufferProfile = profile;
+        boolean shuffled = queue.isShuffled();
+        // in list order the current item is the first one, shuffling keeps it current
+        queue.setShuffled(false);
+        queue.clear();
+        queue.addAll(videoIds);
+        queue.setShuffled(shuffled);
+        prepareCurrentQueueItem();
+    }
+
+    /**
+     * Publish the window of the {@link #queue} around the current item, and tell the browsers the queue changed
+     */
+    private void publishQueue() {
+        mediaSession.setQueue(queue.toQueueItems(QUEUE_WINDOW_BEFORE, QUEUE_WINDOW_AFTER));
+        notifyChildrenChanged(BrowseTree.QUEUE);
+    }
+
+    /**
+     * Start loading the current item of the {@link #queue}, it will start playing as soon as it's ready
+     */
+    private void prepareCurrentQueueItem() {
+        enqueuedMedia = null;
+        publishQueue();
+        mediaSession.setActiveQueueItemId(queue.getCurrentIndex());
+        //we set the playback state to STATE_BUFFERING before extracting the youtube song
+        mediaSession.setBufferedPosition(0);
+        mediaSession.setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, -1);
+        MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
+
+        final String mediaId = queue.getCurrent();
+        extractionCoordinator.request(mediaId, extractionCallback);
+
+        // show what the catalog knows about the video while it's being resolved
+        catalog.lookup(mediaId, new MediaCatalog.LookupCallback() {
+            @Override
+            public void onLookup(final String videoId, final MediaCatalog.Entry entry) {
+                playbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // skipped in the meantime, or already resolved
+                        if (!videoId.equals(queue.getCurrent()) || isMetadataOf(videoId)) return;
+                        if (entry != null) publishMetadata(entry);
+                        else mediaSession.setMetadata(null, videoId, null, null, null, 0);
+                        MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Resolve the item after the current one and enqueue it in the {@link #player},
+     * so that it's buffered while the current one plays. A track enqueued before that is no longer the next one is removed
+     */
+    private void preloadNextQueueItem() {
+        String next = queue.peekNext();
+        String enqueued = player.getEnqueuedMediaId();
+        if (enqueued != null && !enqueued.equals(next)) {
+            // e.g. shuffle changed the order, the player must not move to it
+            Log.d(TAG, "preloadNextQueueItem: dropping " + enqueued);
+            player.clearEnqueued();
+            enqueuedMedia = null;
+        }
+        if (next == null || next.equals(enqueued)) return;
+        extractionCoordinator.prefetch(next, preloadCallback);
+    }
+
+    /**
+     * Publish the metadata of a resolved video, prepare the player with the streams chosen by {@link #formatRanker}
+     * and then start playing with {@link MusicControl#play()}
+     *
+     * @param media The result of an extraction, either fresh or from {@link StreamCache}
+     */
+    private void prepareAndPlay(ResolvedMedia media) {
+        FormatRanker.Selection selection = formatRanker.select(media, player.getBitrateEstimate(), player.getPlayerViewHeight());
+        if (selection == null) {
+            extractionCallback.onError(media.videoId);
+            return;
+        }
+        Log.d(TAG, "prepareAndPlay: audio itag " + selection.audio.itag
+                + ", video itag " + (selection.video == null ? "none" : selection.video.itag));
+
+        catalog.put(media);
+        publishMetadata(media);
+        //actually prepare the player
+        player.prepare(media, selection.audio, selection.video, bufferProfile);
+        //after preparing start playing
+        ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().play();
+        preloadNextQueueItem();
+    }
+
+    /**
+     * @param media The media to show on the notification, lock screen etc
+     */
+    private void publishMetadata(ResolvedMedia media) {
+        catalog.markPlayed(media.videoId);
+        publishMetadata(new MediaCatalog.Entry(media.videoId, media.title, media.channelId, media.imageUrl, media.duration));
+    }
+
+    /**
+     * Publish the metadata of a video, then again with its artwork once loaded by {@link #artworkLoader}
+     *
+     * @param entry The metadata to show on the notification, lock screen etc
+     */
+    private void publishMetadata(final MediaCatalog.Entry entry) {
+        Bitmap art = artworkLoader.pinCached(entry.imageUrl, ArtworkLoader.LOCK_SCREEN_SIZE);
+        mediaSession.setMetadata(entry.title, entry.videoId, entry.channelId, art, entry.imageUrl, entry.duration * 1000);
+        if (art != null || entry.imageUrl == null) return;
+
+        artworkLoader.load(entry.imageUrl, ArtworkLoader.LOCK_SCREEN_SIZE, new ArtworkLoader.Callback() {
+            @Override
+            public void onArtworkLoaded(String url, Bitmap bitmap) {
+                if (bitmap == null || !isMetadataOf(entry.videoId)) return;
+                artworkLoader.pin(bitmap);
+                mediaSession.setMetadata(entry.title, entry.videoId, entry.channelId, bitmap, entry.imageUrl, entry.duration * 1000);
+                MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
+            }
+        });
+    }
+
+    /**
+     * @return true if the published metadata is the one of this video
+     */
+    private boolean isMetadataOf(String videoId) {
+        MediaMetadataCompat current = mediaSession.getMetadata();
+        return current != null && videoId.equals(current.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+    }
+
     /**
      * Listener of the {@link #player} actions. Gets called when the player <i>actually</i>
      * starts responding not when it <i>should</i>
@@ -200,11 +692,15 @@ public class MusicService extends MediaBrowserServiceCompat{
 
         @Override
         public void onLoadingChanged(boolean isLoading) {
-
+            // publish how far the buffer got
+            int state = player.getPlaybackState();
+            if (!isLoading && (state == Player.STATE_READY || state == Player.STATE_BUFFERING))
+                onPlayerStateChanged(player.getPlayWhenReady(), state);
         }
 
         @Override
         public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+            mediaSession.setBufferedPosition(player.getBufferedPosition());
             switch (playbackState) {
                 case Player.STATE_IDLE:
                     mediaSession.setPlaybackState(PlaybackStateCompat.STATE_STOPPED, -1);
@@ -219,11 +715,16 @@ public class MusicService extends MediaBrowserServiceCompat{
                     }
                     break;
                 case Player.STATE_BUFFERING:
-                    mediaSession.setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, -1);
+                    mediaSession.setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, player.getCurrentPosition());
                     break;
                 case Player.STATE_ENDED:
-                    //when the song ends, stop playback
-                    //TODO add queue
+                    //when the last song ends, stop playback
+                    if (queue.hasNext()) {
+                        // the next item was not resolved in time to be enqueued
+                        queue.setCurrentIndex(queue.getCurrentIndex() + 1);
+                        prepareCurrentQueueItem();
+                        return;
+                    }
                     mediaSession.getControls().stop();
                     break;
             }
@@ -238,16 +739,45 @@ public class MusicService extends MediaBrowserServiceCompat{
 
         @Override
         public void onPlayerError(ExoPlaybackException error) {
-            mediaSession.setPlaybackState(PlaybackStateCompat.STATE_ERROR, -1);
+            //the cached urls may have been rejected, the next prepare must extract them again
+            if (mediaSession.getMetadata() != null)
+                streamCache.remove(mediaSession.getMetadata().getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            mediaSession.setPlaybackError(PlaybackError.ERROR_CODE_PLAYBACK);
             MusicNotification.updateNotification(MusicService.this, MusicService.this, mediaSession);
         }
 
         @Override
         public void onPositionDiscontinuity() {
+            String current = player.onPositionDiscontinuity();
+            if (current == null) {
+                // a seek, publish the new position
+                onPlayerStateChanged(player.getPlayWhenReady(), player.getPlaybackState());
+                return;
+            }
+            if (!current.equals(queue.peekNext())) {
+                // it was enqueued before the queue changed, play what the queue says instead
+                Log.d(TAG, "onPositionDiscontinuity: " + current + " is not the next item anymore");
+                enqueuedMedia = null;
+                player.stop();
+                if (queue.hasNext()) {
+                    queue.setCurrentIndex(queue.getCurrentIndex() + 1);
+                    prepareCurrentQueueItem();
+                }
+                return;
+            }
+            // the player moved to the enqueued media
+            queue.setCurrentIndex(queue.getCurrentIndex() + 1);
+            publishQueue();
+            mediaSession.setActiveQueueItemId(queue.getCurrentIndex());
+            if (enqueuedMedia != null && enqueuedMedia.videoId.equals(current)) publishMetadata(enqueuedMedia);
+            enqueuedMedia = null;
+            onPlayerStateChanged(player.getPlayWhenReady(), player.getPlaybackState());
+            preloadNextQueueItem();
         }
 
         @Override
         public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+            mediaSession.setPlaybackSpeed(playbackParameters.speed);
 
         }
     };
@@ -280,7 +810,12 @@ public class MusicService extends MediaBrowserServiceCompat{
 
         @Override
         public void onAudioFocusLossTransientCanDuck() {
-            player.duck();
+            playbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    player.duck();
+                }
+            });
         }
 
         @Override
@@ -290,6 +825,20 @@ public class MusicService extends MediaBrowserServiceCompat{
     };
 
 
+    /**
+     * Releases the warm players that are not needed when memory is running low
+     */
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+        playbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                player.onTrimMemory(level);
+            }
+        });
+    }
+
     /**
      * Called when the app is swiped from the recents screen
      * Stops the service if user is not listening to music
@@ -310,15 +859,50 @@ public class MusicService extends MediaBrowserServiceCompat{
 
     /**
      * Called when the service is being stopped. Calls {@link MusicControl#stop()} to perform
-     * all the clean up and then destroys the objects
+     * all the clean up and then destroys the objects, on the playback thread
      */
     @Override
     public void onDestroy() {
         super.onDestroy();
         Toast.makeText(this, "onDestroy", Toast.LENGTH_SHORT).show();
         ((MediaPlaybackApplication) getApplicationContext()).getMusicControl().stop();
+        catalog.removeListener(catalogListener);
+        browseTree.release();
+        playbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                release();
+            }
+        });
+    }
+
+    /**
+     * Destroy everything owned by the playback thread and drop what's still queued for this service
+     */
+    private void release() {
+        playbackHandler.removeCallbacksAndMessages(null);
         mediaSession.destroy();
         player.destroy();
+        Log.d(TAG, "onDestroy: playback states published " + mediaSession.getStatePublisher().getPublishedCount()
+                + ", suppressed " + mediaSession.getStatePublisher().getSuppressedCount());
+        Log.d(TAG, "onDestroy: notification updates " + MusicNotification.getUpdateCount()
+                + ", posted " + MusicNotification.getPostCount());
+        Log.d(TAG, "onDestroy: scrubbing positions " + player.getScrubRequestCount()
+                + ", seeks " + player.getScrubSeekCount());
+        Log.d(TAG, "onDestroy: warm players played " + player.getWarmHitCount()
+                + ", evicted " + player.getWarmEvictionCount());
+        Log.d(TAG, "onDestroy: start times " + player.getStartTimes());
+        Log.d(TAG, "onDestroy: buffer profiles " + player.getBufferStats());
+        if (player.isMediaCacheOpen()) {
+            MediaCache mediaCache = player.getMediaCache();
+            Log.d(TAG, "onDestroy: media cache hit " + mediaCache.getHitBytes()
+                    + " bytes, miss " + mediaCache.getMissBytes() + " bytes, stored " + mediaCache.getCacheSpace()
+                    + " of " + mediaCache.getMaxBytes() + " bytes");
+        }
+        Log.d(TAG, "onDestroy: startup " + StartupTrace.summary());
+        Log.d(TAG, "onDestroy: extractions coalesced " + extractionCoordinator.getCoalescedCount()
+                + ", cancelled " + extractionCoordinator.getCancelledCount());
+        extractionCoordinator.shutdown();
     }
 
 
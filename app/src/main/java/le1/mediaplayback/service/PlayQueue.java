@@ -0,0 +1,258 @@
+package le1.mediaplayback.service;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The ordered list of media ids to play and the position of the one playing.
+ * <p>
+ * Built to hold very large playlists: every media id is interned once and the queue itself
+ * is an int array of symbols. Shuffle is a permutation that is materialized lazily,
+ * one Fisher-Yates step at a time as the playback position advances, so that enabling shuffle,
+ * skipping and disabling shuffle are all O(1) (amortized) and never reallocate.
+ * <p>
+ * Positions are always in play order, i.e. in shuffled order while shuffle is enabled
+ */
+class PlayQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Interned media ids, a symbol is an index of {@link #symbols}
+     */
+    private final Map<String, Integer> symbolOf = new HashMap<>();
+    private String[] symbols = new String[INITIAL_CAPACITY];
+    private int symbolCount;
+
+    /**
+     * The symbol of each item, in insertion order
+     */
+    private int[] items = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * Position of the item being played, in play order. -1 if the queue is empty
+     */
+    private int position = -1;
+
+    private final Random random = new Random();
+    private boolean shuffled;
+
+    /**
+     * The shuffled permutation: play position -> item index.
+     * An entry is only valid if its {@link #permutationStamps} equals {@link #permutationGeneration},
+     * otherwise it's the identity. This way a new permutation is started in O(1) by incrementing the generation
+     */
+    private int[] permutation = new int[INITIAL_CAPACITY];
+    private int[] permutationStamps = new int[INITIAL_CAPACITY];
+    private int permutationGeneration = 1;
+
+    /**
+     * Play positions below this are fixed, the others are still to be drawn
+     */
+    private int shuffledCount;
+
+    /**
+     * Replace the whole queue with a single item and make it the current one
+     */
+    void reset(String mediaId) {
+        clear();
+        add(mediaId);
+    }
+
+    /**
+     * Append an item at the end of the queue.
+     * While shuffled, it gets a random position among the items not drawn yet
+     */
+    void add(String mediaId) {
+        ensureCapacity(size + 1);
+        items[size++] = intern(mediaId);
+        if (position < 0) position = 0;
+    }
+
+    /**
+     * Append many items at the end of the queue, see {@link #add(String)}
+     */
+    void addAll(List<String> mediaIds) {
+        ensureCapacity(size + mediaIds.size());
+        for (String mediaId : mediaIds) {
+            items[size++] = intern(mediaId);
+        }
+        if (position < 0 && size > 0) position = 0;
+    }
+
+    /**
+     * Remove every item. The arrays are kept to be reused
+     */
+    void clear() {
+        symbolOf.clear();
+        for (int i = 0; i < symbolCount; i++) symbols[i] = null;
+        symbolCount = 0;
+        size = 0;
+        position = -1;
+        startPermutation();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The play position of the current item, -1 if the queue is empty
+     */
+    int getCurrentIndex() {
+        return position;
+    }
+
+    /**
+     * @param index The play position of the new current item
+     * @return false if the index is out of bounds
+     */
+    boolean setCurrentIndex(int index) {
+        if (index < 0 || index >= size) return false;
+        position = index;
+        return true;
+    }
+
+    /**
+     * @return The media id of the item being played, null if the queue is empty
+     */
+    String getCurrent() {
+        return position < 0 ? null : get(position);
+    }
+
+    /**
+     * @return The media id of the item after the current one, null if the current one is the last
+     */
+    String peekNext() {
+        return hasNext() ? get(position + 1) : null;
+    }
+
+    boolean hasNext() {
+        return position >= 0 && position + 1 < size;
+    }
+
+    boolean hasPrevious() {
+        return position > 0;
+    }
+
+    boolean isShuffled() {
+        return shuffled;
+    }
+
+    /**
+     * Enable or disable shuffle. The current item stays the current one,
+     * when enabling it becomes the first of a new random order
+     */
+    void setShuffled(boolean shuffled) {
+        if (this.shuffled == shuffled) return;
+        if (shuffled) {
+            startPermutation();
+            if (position >= 0) {
+                swap(0, position);
+                shuffledCount = 1;
+                position = 0;
+            }
+        } else if (position >= 0) {
+            position = itemAt(position);
+        }
+        this.shuffled = shuffled;
+    }
+
+    /**
+     * @param position A play position
+     * @return The media id at that position
+     */
+    String get(int position) {
+        return symbols[items[itemIndexOf(position)]];
+    }
+
+    /**
+     * @param before How many items before the current one to include
+     * @param after  How many items after the current one to include
+     * @return A window of the queue around the current item, in the format used by {@link MediaSessionCompat#setQueue(List)}.
+     * The id of each {@link MediaSessionCompat.QueueItem} is its play position
+     */
+    List<MediaSessionCompat.QueueItem> toQueueItems(int before, int after) {
+        if (position < 0) return new ArrayList<>(0);
+        int from = Math.max(0, position - before);
+        int to = Math.min(size, position + after + 1);
+        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId(get(i))
+                    .build();
+            queueItems.add(new MediaSessionCompat.QueueItem(description, i));
+        }
+        return queueItems;
+    }
+
+    /**
+     * @return The item index at a play position, drawing the shuffled order up to it if needed
+     */
+    private int itemIndexOf(int position) {
+        if (!shuffled) return position;
+        while (shuffledCount <= position) {
+            swap(shuffledCount, shuffledCount + random.nextInt(size - shuffledCount));
+            shuffledCount++;
+        }
+        return itemAt(position);
+    }
+
+    private int itemAt(int position) {
+        return permutationStamps[position] == permutationGeneration ? permutation[position] : position;
+    }
+
+    private void swap(int a, int b) {
+        int itemA = itemAt(a);
+        int itemB = itemAt(b);
+        permutation[a] = itemB;
+        permutationStamps[a] = permutationGeneration;
+        permutation[b] = itemA;
+        permutationStamps[b] = permutationGeneration;
+    }
+
+    /**
+     * Forget the current permutation in O(1)
+     */
+    private void startPermutation() {
+        permutationGeneration++;
+        shuffledCount = 0;
+    }
+
+    private int intern(String mediaId) {
+        Integer symbol = symbolOf.get(mediaId);
+        if (symbol != null) return symbol;
+        if (symbolCount == symbols.length) {
+            String[] grown = new String[symbols.length * 2];
+            System.arraycopy(symbols, 0, grown, 0, symbolCount);
+            symbols = grown;
+        }
+        symbols[symbolCount] = mediaId;
+        symbolOf.put(mediaId, symbolCount);
+        return symbolCount++;
+    }
+
+    /**
+     * Grow the item and permutation arrays, doubling them to keep appends amortized O(1)
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= items.length) return;
+        int newCapacity = Math.max(capacity, items.length * 2);
+        int[] grownItems = new int[newCapacity];
+        System.arraycopy(items, 0, grownItems, 0, size);
+        items = grownItems;
+
+        int[] grownPermutation = new int[newCapacity];
+        System.arraycopy(permutation, 0, grownPermutation, 0, permutation.length);
+        permutation = grownPermutation;
+        int[] grownStamps = new int[newCapacity];
+        System.arraycopy(permutationStamps, 0, grownStamps, 0, permutationStamps.length);
+        permutationStamps = grownStamps;
+    }
+}
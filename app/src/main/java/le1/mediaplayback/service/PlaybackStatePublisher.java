@@ -0,0 +1,143 @@
+package le1.mediaplayback.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Publishes {@link PlaybackStateCompat}s to a {@link MediaSessionCompat}, dropping the ones that change nothing.
+ * <p>
+ * Every publish is an IPC to each controller plus a notification rebuild, while ExoPlayer
+ * can report many transitions in a row, e.g. while buffering. So:
+ * <ul>
+ * <li>a state equal to the last one, with a position matching the extrapolated one, is dropped</li>
+ * <li>states submitted within {@link #FRAME_WINDOW_MS} of each other are merged, only the last one is published</li>
+ * </ul>
+ */
+class PlaybackStatePublisher {
+    /**
+     * About one frame at 60fps
+     */
+    private static final long FRAME_WINDOW_MS = 16;
+
+    /**
+     * Positions closer than this to the extrapolated one are considered unchanged
+     */
+    private static final long POSITION_TOLERANCE_MS = 50;
+
+    /**
+     * The buffered position is only worth a publish if it moved more than this
+     */
+    private static final long BUFFERED_POSITION_TOLERANCE_MS = 1000;
+
+    private final MediaSessionCompat mediaSession;
+    private final Handler handler;
+
+    /**
+     * The last state actually given to {@link #mediaSession}.
+     * Written on the publishing thread only, volatile for {@link #getLatest()}
+     */
+    private volatile PlaybackStateCompat published;
+    /**
+     * The state waiting for the end of the frame window, null if there is none
+     */
+    private volatile PlaybackStateCompat pending;
+
+    private int publishedCount;
+    private int suppressedCount;
+
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (pending == null) return;
+            published = pending;
+            pending = null;
+            publishedCount++;
+            mediaSession.setPlaybackState(published);
+        }
+    };
+
+    /**
+     * @param mediaSession The session to publish to
+     * @param looper       The looper of the only thread allowed to submit states
+     */
+    PlaybackStatePublisher(MediaSessionCompat mediaSession, Looper looper) {
+        this.mediaSession = mediaSession;
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Submit a state, it's published at the end of the current frame window unless it changes nothing
+     */
+    void submit(PlaybackStateCompat state) {
+        PlaybackStateCompat latest = getLatest();
+        if (latest != null && isEquivalent(latest, state)) {
+            suppressedCount++;
+            return;
+        }
+        if (pending != null) {
+            // merged with the one already waiting
+            suppressedCount++;
+        } else {
+            handler.postDelayed(publishRunnable, FRAME_WINDOW_MS);
+        }
+        pending = state;
+    }
+
+    /**
+     * Can be called from any thread
+     *
+     * @return The last submitted state that was not dropped, which may not be published yet
+     */
+    PlaybackStateCompat getLatest() {
+        return pending != null ? pending : published;
+    }
+
+    /**
+     * @return How many states were given to the session
+     */
+    int getPublishedCount() {
+        return publishedCount;
+    }
+
+    /**
+     * @return How many submitted states were dropped or merged
+     */
+    int getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Drop the pending state, if any
+     */
+    void release() {
+        handler.removeCallbacks(publishRunnable);
+        pending = null;
+    }
+
+    /**
+     * @return true if b shows nothing new compared to a
+     */
+    private static boolean isEquivalent(PlaybackStateCompat a, PlaybackStateCompat b) {
+        if (a.getState() != b.getState()
+                || a.getPlaybackSpeed() != b.getPlaybackSpeed()
+                || a.getActiveQueueItemId() != b.getActiveQueueItemId()
+                || a.getActions() != b.getActions()
+                || a.getErrorCode() != b.getErrorCode()
+                || Math.abs(a.getBufferedPosition() - b.getBufferedPosition()) > BUFFERED_POSITION_TOLERANCE_MS)
+            return false;
+        if (a.getPosition() < 0 || b.getPosition() < 0) return a.getPosition() == b.getPosition();
+        return Math.abs(extrapolate(a, b.getLastPositionUpdateTime()) - b.getPosition()) <= POSITION_TOLERANCE_MS;
+    }
+
+    /**
+     * @return The position of a state at a given time
+     */
+    private static long extrapolate(PlaybackStateCompat state, long elapsedRealtime) {
+        if (elapsedRealtime <= 0) elapsedRealtime = SystemClock.elapsedRealtime();
+        return state.getPosition()
+                + (long) ((elapsedRealtime - state.getLastPositionUpdateTime()) * state.getPlaybackSpeed());
+    }
+}
@@ -0,0 +1,181 @@
+package le1.mediaplayback.service;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+
+import le1.mediaplayback.BufferProfile;
+
+/**
+ * The {@link LoadControl} of every player built by {@link PlayerManager}.
+ * <p>
+ * Each {@link BufferProfile} is a {@link DefaultLoadControl} sharing the same allocator,
+ * the profile selected with {@link #setProfile(BufferProfile)} decides when to load and when to start.
+ * A player warming up in the pool only buffers {@link #WARM_BUFFER_MS}, so that the candidates don't take
+ * the bandwidth of the track playing, and gets its profile as soon as it becomes the one playing.
+ * <p>
+ * Profiles with {@link BufferProfile#maxBufferBytes} also stop loading when the allocator reaches it,
+ * and start playing with whatever fits in it
+ */
+class PlayerLoadControl implements LoadControl {
+    /**
+     * How much a warm player buffers, enough to start instantly
+     */
+    static final int WARM_BUFFER_MS = 5000;
+    private static final int WARM_BUFFER_FOR_PLAYBACK_MS = 2500;
+
+    /**
+     * Memory and rebuffers of every profile, shared by all the players
+     */
+    static class Stats {
+        private final long[] peakBytes = new long[BufferProfile.values().length];
+        private final int[] rebufferCount = new int[BufferProfile.values().length];
+        private final int[] prepareCount = new int[BufferProfile.values().length];
+
+        private synchronized void onAllocated(BufferProfile profile, long bytes) {
+            peakBytes[profile.ordinal()] = Math.max(peakBytes[profile.ordinal()], bytes);
+        }
+
+        private synchronized void onRebuffer(BufferProfile profile) {
+            rebufferCount[profile.ordinal()]++;
+        }
+
+        /**
+         * Called for every track prepared, by {@link PlayerManager}: the player is prepared again
+         * when the video is added or removed, and a warm player is prepared before being played
+         */
+        synchronized void onPrepared(BufferProfile profile) {
+            prepareCount[profile.ordinal()]++;
+        }
+
+        /**
+         * @return For every profile used: how many tracks were prepared with it, the peak memory of a single
+         * player buffer and how many times playback ran out of buffer
+         */
+        @Override
+        public synchronized String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (BufferProfile profile : BufferProfile.values()) {
+                int i = profile.ordinal();
+                if (prepareCount[i] == 0) continue;
+                if (builder.length() > 0) builder.append(", ");
+                builder.append(profile).append(": ").append(prepareCount[i]).append(" prepared, peak ")
+                        .append(peakBytes[i] / 1024).append(" KB, ").append(rebufferCount[i]).append(" rebuffers");
+            }
+            return builder.length() == 0 ? "none" : builder.toString();
+        }
+    }
+
+    private final Stats stats;
+    private final DefaultAllocator allocator = new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE);
+    private final DefaultLoadControl warm = new DefaultLoadControl(allocator,
+            WARM_BUFFER_MS, WARM_BUFFER_MS, WARM_BUFFER_FOR_PLAYBACK_MS, WARM_BUFFER_FOR_PLAYBACK_MS);
+    /**
+     * One for every {@link BufferProfile}, by ordinal
+     */
+    private final DefaultLoadControl[] profiles = new DefaultLoadControl[BufferProfile.values().length];
+
+    /**
+     * Written on the playback thread, read on the ExoPlayer internal one
+     */
+    private volatile boolean warming;
+    private volatile BufferProfile profile = BufferProfile.DEFAULT;
+
+    /**
+     * Whether the current rebuffer was counted already. Only used on the ExoPlayer internal thread
+     */
+    private boolean isRebuffering;
+
+    /**
+     * @param warming Whether the player is only warming up in the pool
+     * @param stats   Where to report memory and rebuffers, prepares are reported by the caller
+     */
+    PlayerLoadControl(boolean warming, Stats stats) {
+        this.warming = warming;
+        this.stats = stats;
+        for (BufferProfile p : BufferProfile.values()) {
+            profiles[p.ordinal()] = new DefaultLoadControl(allocator, p.minBufferMs, p.maxBufferMs,
+                    p.bufferForPlaybackMs, p.bufferForPlaybackAfterRebufferMs);
+        }
+    }
+
+    /**
+     * Called when a warm player becomes the one playing
+     */
+    void setWarming(boolean warming) {
+        this.warming = warming;
+    }
+
+    /**
+     * Select the profile used from now on, usually right before a prepare
+     */
+    void setProfile(BufferProfile profile) {
+        this.profile = profile;
+    }
+
+    private DefaultLoadControl current() {
+        return warming ? warm : profiles[profile.ordinal()];
+    }
+
+    /**
+     * @return true if the profile caps the buffer in bytes and the cap is reached
+     */
+    private boolean isByteCapReached() {
+        return !warming && profile.maxBufferBytes > 0 && allocator.getTotalBytesAllocated() >= profile.maxBufferBytes;
+    }
+
+    // all of them get every lifecycle call: they set the same target size on the shared allocator
+
+    @Override
+    public void onPrepared() {
+        warm.onPrepared();
+        for (DefaultLoadControl p : profiles) p.onPrepared();
+        isRebuffering = false;
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        warm.onTracksSelected(renderers, trackGroups, trackSelections);
+        for (DefaultLoadControl p : profiles) p.onTracksSelected(renderers, trackGroups, trackSelections);
+    }
+
+    @Override
+    public void onStopped() {
+        warm.onStopped();
+        for (DefaultLoadControl p : profiles) p.onStopped();
+        isRebuffering = false;
+    }
+
+    @Override
+    public void onReleased() {
+        warm.onReleased();
+        for (DefaultLoadControl p : profiles) p.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return allocator;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
+        if (rebuffering && !isRebuffering && !warming) {
+            isRebuffering = true;
+            stats.onRebuffer(profile);
+        }
+        boolean start = current().shouldStartPlayback(bufferedDurationUs, rebuffering) || isByteCapReached();
+        if (start) isRebuffering = false;
+        return start;
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs) {
+        if (!warming) stats.onAllocated(profile, allocator.getTotalBytesAllocated());
+        return current().shouldContinueLoading(bufferedDurationUs) && !isByteCapReached();
+    }
+}
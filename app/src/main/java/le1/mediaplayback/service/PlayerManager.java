@@ -1,55 +1,407 @@
 package le1.mediaplayback.service;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Surface;
 
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.decoder.DecoderCounters;
 import com.google.android.exoplayer2.extractor.DefaultExtractorsFactory;
+import com.google.android.exoplayer2.source.DynamicConcatenatingMediaSource;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
 import com.google.android.exoplayer2.source.MediaSource;
 import com.google.android.exoplayer2.source.MergingMediaSource;
+import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.AdaptiveTrackSelection;
 import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.ui.SimpleExoPlayerView;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
 import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.video.VideoRendererEventListener;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import le1.mediaplayback.BufferProfile;
 import le1.mediaplayback.callback.AudioFocusCallback;
 import le1.mediaplayback.R;
 
 /**
- * Wrapper of {@link SimpleExoPlayer} that exposes the least amount of methods possible
+ * Wrapper of {@link SimpleExoPlayer} that exposes the least amount of methods possible.
+ * <p>
+ * The player lives on the playback thread, see {@link #getPlaybackLooper()}: it's built there,
+ * its events are received there, and every package method must be called there.
+ * The public methods can be called from any thread
  */
 public class PlayerManager {
     private static final String TAG = "LE1_PlayerManager";
-    private final SimpleExoPlayer player;
-    private Context context;
 
-    private static PlayerManager INSTANCE;
+    /**
+     * Runs the session callbacks and every operation on the player, away from the UI frames of the main thread
+     */
+    private static volatile HandlerThread playbackThread;
+    /**
+     * Built on first use or by {@link #prewarm()}, see {@link #ensurePlayer()}. Null until then
+     */
+    private SimpleExoPlayer player;
+    private DefaultTrackSelector trackSelector;
+    private PlayerLoadControl loadControl;
+    /**
+     * Memory and rebuffers of each {@link BufferProfile}, reported by every load control
+     */
+    private final PlayerLoadControl.Stats bufferStats = new PlayerLoadControl.Stats();
+    /**
+     * Used by the prepares that don't ask for a profile
+     */
+    private final BufferProfile defaultBufferProfile;
+    /**
+     * Shared by {@link #player} and the warm players, so that every transfer improves the same estimate
+     */
+    private final DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+    /**
+     * Chooses the video again when a view is bound to a track started without one
+     */
+    private final FormatRanker formatRanker = new FormatRanker();
+    /**
+     * Built on first use, see {@link #getMediaCache()}
+     */
+    private MediaCache mediaCache;
+    private SimpleExoPlayerView playerView;
+    private final PlayerViewBinder viewBinder = new PlayerViewBinder();
+    private final Context context;
+
+    /**
+     * Registered with {@link #addEventListener(Player.EventListener)}, added to {@link #player} when it's built
+     */
+    private final List<Player.EventListener> listeners = new ArrayList<>();
+
+    /**
+     * A track loaded in {@link #concatenatedSource}
+     */
+    private static class Item {
+        final ResolvedMedia media;
+        final String mediaId;
+        final ResolvedMedia.Stream audioStream;
+        final ResolvedMedia.Stream videoStream;
+
+        Item(ResolvedMedia media, ResolvedMedia.Stream audioStream, ResolvedMedia.Stream videoStream) {
+            this.media = media;
+            this.mediaId = media.videoId;
+            this.audioStream = audioStream;
+            this.videoStream = videoStream;
+        }
+    }
+
+    /**
+     * The tracks loaded in the player: the one playing, at index 0,
+     * followed by the one enqueued with {@link #enqueue(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream)}, if any.
+     * Each item is a window of {@link #concatenatedSource}, in the same order
+     */
+    private final List<Item> items = new ArrayList<>();
+    private DynamicConcatenatingMediaSource concatenatedSource;
+
+    /**
+     * Whether the media source currently prepared includes the video stream.
+     * False when playback was started in audio only mode
+     */
+    private boolean isVideoSourcePrepared;
+
+    /**
+     * Whether a track with a separate video stream starts playing its audio without waiting for the video,
+     * see {@link #setProgressiveStart(boolean)}
+     */
+    private boolean progressiveStart = true;
+    /**
+     * True from a progressive prepare until the audio is ready: the video renderer is kept disabled until then
+     */
+    private boolean isVideoJoinPending;
+    private final StartTimer startTimer = new StartTimer();
+
+    /**
+     * Enables the video renderer as soon as the audio of a progressive start is ready, and feeds the {@link #startTimer}
+     */
+    private final Player.EventListener startListener = new Player.EventListener() {
+        @Override
+        public void onTimelineChanged(Timeline timeline, Object manifest) {
+        }
+
+        @Override
+        public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        }
+
+        @Override
+        public void onLoadingChanged(boolean isLoading) {
+        }
+
+        @Override
+        public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+            if (playbackState != Player.STATE_READY || !playWhenReady) return;
+            startTimer.onAudioStarted();
+            if (!isVideoJoinPending) return;
+            // the video renderer joins the playing audio: it renders from the next keyframe,
+            // while the audio keeps playing for up to the allowed joining time.
+            // Enabled while paused instead, it would make the player buffer again before playing
+            isVideoJoinPending = false;
+            Log.d(TAG, "onPlayerStateChanged: audio ready, enabling video");
+            setVideoRendererEnabled(playerView != null);
+        }
+
+        @Override
+        public void onRepeatModeChanged(int repeatMode) {
+        }
+
+        @Override
+        public void onPlayerError(ExoPlaybackException error) {
+            isVideoJoinPending = false;
+            startTimer.cancel();
+        }
+
+        @Override
+        public void onPositionDiscontinuity() {
+        }
+
+        @Override
+        public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+        }
+    };
+
+    /**
+     * Tells the {@link #startTimer} when the first frame is rendered
+     */
+    private final VideoRendererEventListener videoDebugListener = new VideoRendererEventListener() {
+        @Override
+        public void onVideoEnabled(DecoderCounters counters) {
+        }
+
+        @Override
+        public void onVideoDecoderInitialized(String decoderName, long initializedTimestampMs, long initializationDurationMs) {
+        }
+
+        @Override
+        public void onVideoInputFormatChanged(Format format) {
+        }
+
+        @Override
+        public void onDroppedFrames(int count, long elapsedMs) {
+        }
+
+        @Override
+        public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+        }
+
+        @Override
+        public void onRenderedFirstFrame(Surface surface) {
+            startTimer.onFirstFrame();
+        }
+
+        @Override
+        public void onVideoDisabled(DecoderCounters counters) {
+        }
+    };
+
+    /**
+     * Max number of players kept in {@link #warmPool}, see {@link #warm(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream)}
+     */
+    private static final int MAX_WARM_PLAYERS = 2;
+    private static final int MAX_WARM_PLAYERS_LOW_RAM = 1;
+
+    /**
+     * A player buffering a track that may be played next, ready to replace {@link #player}
+     */
+    private static class WarmPlayer {
+        final Item item;
+        final SimpleExoPlayer player;
+        final DefaultTrackSelector trackSelector;
+        final PlayerLoadControl loadControl;
+        final DynamicConcatenatingMediaSource source;
+
+        WarmPlayer(Item item, SimpleExoPlayer player, DefaultTrackSelector trackSelector, PlayerLoadControl loadControl,
+                   DynamicConcatenatingMediaSource source) {
+            this.item = item;
+            this.player = player;
+            this.trackSelector = trackSelector;
+            this.loadControl = loadControl;
+            this.source = source;
+        }
+    }
+
+    /**
+     * The warm players by media id, the oldest first
+     */
+    private final Map<String, WarmPlayer> warmPool = new LinkedHashMap<>();
+    private final int maxWarmPlayers;
+    private int warmHitCount;
+    private int warmEvictionCount;
 
+    /**
+     * Network sources wrapped by the {@link #mediaCache}, built on first use
+     */
+    private DataSource.Factory dataSourceFactory;
+
+    /**
+     * Min time between two seeks while scrubbing, see {@link #scrubTo(long)}
+     */
+    private static final long SCRUB_INTERVAL_MS = 200;
+    /**
+     * Max time to wait for a scrubbing seek to be buffered before issuing the next one
+     */
+    private static final long SCRUB_MAX_WAIT_MS = 1000;
+
+    /**
+     * Handler of the playback thread
+     */
+    private final Handler handler = new Handler(getPlaybackLooper());
+    /**
+     * Where the user is scrubbing to and no seek was issued yet, -1 if none
+     */
+    private long pendingScrubPosition = -1;
+    private long lastScrubSeekTime;
+    private int scrubRequestCount;
+    private int scrubSeekCount;
+
+    private final Runnable scrubRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (pendingScrubPosition < 0 || player == null) return;
+            long now = SystemClock.elapsedRealtime();
+            // the previous seek is still loading, issuing another one would only queue up behind it
+            if (player.getPlaybackState() == Player.STATE_BUFFERING && now - lastScrubSeekTime < SCRUB_MAX_WAIT_MS) {
+                handler.postDelayed(this, SCRUB_INTERVAL_MS);
+                return;
+            }
+            lastScrubSeekTime = now;
+            scrubSeekCount++;
+            player.seekTo(pendingScrubPosition);
+            pendingScrubPosition = -1;
+        }
+    };
+
+    private static volatile PlayerManager INSTANCE;
+
+    /**
+     * Can be called from any thread
+     */
     public static PlayerManager getInstance(Context c){
-        if (INSTANCE==null) INSTANCE= new PlayerManager(c);
-        return INSTANCE;
+        PlayerManager instance = INSTANCE;
+        if (instance == null) {
+            synchronized (PlayerManager.class) {
+                instance = INSTANCE;
+                if (instance == null) INSTANCE = instance = new PlayerManager(c);
+            }
+        }
+        return instance;
     }
 
     /**
-     * Build {@link #player} instance
+     * @return The looper of the playback thread, started on first call. It lives as long as the process
+     */
+    static Looper getPlaybackLooper(){
+        HandlerThread thread = playbackThread;
+        if (thread == null) {
+            synchronized (PlayerManager.class) {
+                thread = playbackThread;
+                if (thread == null) {
+                    thread = new HandlerThread("playback", Process.THREAD_PRIORITY_AUDIO);
+                    thread.start();
+                    playbackThread = thread;
+                }
+            }
+        }
+        return thread.getLooper();
+    }
+
+    /**
+     * Cheap, {@link #player} is only built when needed
      * @param context Application context
      */
     private PlayerManager(final Context context){
-        player = ExoPlayerFactory.newSimpleInstance(context.getApplicationContext(),
-                new DefaultTrackSelector(
-                        new AdaptiveTrackSelection.Factory(
-                                new DefaultBandwidthMeter())
-                )
+        this.context = context.getApplicationContext();
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean isLowRamDevice = activityManager != null && activityManager.isLowRamDevice();
+        maxWarmPlayers = isLowRamDevice ? MAX_WARM_PLAYERS_LOW_RAM : MAX_WARM_PLAYERS;
+        defaultBufferProfile = isLowRamDevice ? BufferProfile.LOW_MEMORY : BufferProfile.DEFAULT;
+    }
+
+    /**
+     * Build {@link #player} if it doesn't exist yet.
+     * Renderers, decoders lookup and track selector make it the most expensive object of playback,
+     * so it's only built when something has to be played or by {@link #prewarm()}
+     * @return {@link #player}
+     */
+    private SimpleExoPlayer ensurePlayer(){
+        if (player != null) return player;
+        long start = StartupTrace.begin();
+        trackSelector = new DefaultTrackSelector(
+                new AdaptiveTrackSelection.Factory(bandwidthMeter)
         );
+        loadControl = new PlayerLoadControl(false, bufferStats);
+        player = ExoPlayerFactory.newSimpleInstance(context, trackSelector, loadControl);
+        player.addListener(startListener);
+        player.setVideoDebugListener(videoDebugListener);
+        for (Player.EventListener listener : listeners) player.addListener(listener);
+        if (playerView != null) viewBinder.bind(player, playerView);
+        setVideoRendererEnabled(playerView != null);
+        StartupTrace.end("player", start);
+        return player;
+    }
 
-        this.context = context;
+    /**
+     * Build {@link #player} and the {@link MediaCache} as soon as the playback thread is idle,
+     * so that they are ready before the first track is prepared without delaying the commands already queued
+     */
+    void prewarm(){
+        handler.post(prewarmRunnable);
+    }
+
+    private final Runnable prewarmRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (player != null) return;
+            Looper.myQueue().removeIdleHandler(prewarmIdleHandler);
+            Looper.myQueue().addIdleHandler(prewarmIdleHandler);
+        }
+    };
+
+    /**
+     * Added by {@link #prewarm()}, removed by {@link #destroy()} so that a player is never built after it
+     */
+    private final MessageQueue.IdleHandler prewarmIdleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            ensurePlayer();
+            getMediaCache();
+            return false;
+        }
+    };
+
+    /**
+     * @return true if {@link #getMediaCache()} has been opened already
+     */
+    boolean isMediaCacheOpen(){
+        return mediaCache != null;
     }
 
     /**
@@ -57,29 +409,386 @@ public class PlayerManager {
      * @param listener The {@link Player.EventListener} to register
      */
     void addEventListener(Player.EventListener listener){
-        player.addListener(listener);
+        listeners.add(listener);
+        if (player != null) player.addListener(listener);
+    }
+
+    /**
+     * @return {@link #player}'s current position in milliseconds
+     */
+    long getCurrentPosition(){
+        return player == null ? 0 : player.getCurrentPosition();
+    }
+
+    /**
+     * @return The position up to which the current track is buffered, in milliseconds
+     */
+    long getBufferedPosition() {
+        return player == null ? 0 : player.getBufferedPosition();
+    }
+
+    /**
+     * @see Player#getPlayWhenReady()
+     */
+    boolean getPlayWhenReady(){
+        return player != null && player.getPlayWhenReady();
+    }
+
+    /**
+     * @see Player#getPlaybackState()
+     */
+    int getPlaybackState(){
+        return player == null ? Player.STATE_IDLE : player.getPlaybackState();
     }
 
     /**
-     * @return {@link #player}'s current position in seconds
+     * @return The current bandwidth estimate in bits per second,
+     * or {@link DefaultBandwidthMeter#NO_ESTIMATE} if nothing has been downloaded yet
      */
-    public int getCurrentPosition(){
-        return (int) player.getCurrentPosition()/1000;
+    long getBitrateEstimate(){
+        return bandwidthMeter.getBitrateEstimate();
     }
 
     /**
-     * Start preparing playback
-     * @param audioUri Audio only Uri of track
-     * @param videoUri Video only Uri of track
+     * @return The height in pixels of the view bound with {@link #setPlayerView(SimpleExoPlayerView)},
+     * 0 if there is none. The shortest side of the screen if it's not laid out yet
      */
-    void prepare(Uri audioUri, Uri videoUri){
-        String userAgent = Util.getUserAgent(context, context.getString(R.string.app_name));
-        DefaultExtractorsFactory extractorsFactory = new DefaultExtractorsFactory();
-        DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(context, userAgent);
-        MediaSource audioSource = new ExtractorMediaSource(audioUri, dataSourceFactory, extractorsFactory, null, null);
-        MediaSource videoSource = new ExtractorMediaSource(videoUri, dataSourceFactory, extractorsFactory, null, null);
-        MergingMediaSource combinedSources = new MergingMediaSource(audioSource, videoSource);
-        player.prepare(combinedSources, true, true);
+    int getPlayerViewHeight(){
+        if (playerView == null) return 0;
+        if (playerView.getHeight() > 0) return playerView.getHeight();
+        DisplayMetrics metrics = playerView.getResources().getDisplayMetrics();
+        return Math.min(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Start preparing playback, discarding any track loaded before.
+     * If no view is bound with {@link #setPlayerView(SimpleExoPlayerView)} only the audio is loaded,
+     * the video is added as soon as a view is bound.
+     * With a progressive start the video renderer stays disabled until the audio is ready,
+     * so the audio doesn't wait for the video stream to buffer
+     * @param media The track, its YouTube id keys the {@link MediaCache}
+     * @param audioStream Audio only stream of track, or a stream containing both audio and video
+     * @param videoStream Video only stream of track, null if audioStream already contains the video
+     * @param bufferProfile How much to buffer, null for {@link BufferProfile#LOW_MEMORY} on low RAM devices
+     *                      and {@link BufferProfile#DEFAULT} on the others
+     */
+    void prepare(ResolvedMedia media, ResolvedMedia.Stream audioStream, ResolvedMedia.Stream videoStream,
+                 BufferProfile bufferProfile){
+        String mediaId = media.videoId;
+        if (bufferProfile == null) bufferProfile = defaultBufferProfile;
+        bufferStats.onPrepared(bufferProfile);
+        WarmPlayer warm = warmPool.remove(mediaId);
+        if (warm != null) {
+            if (warm.player.getPlaybackState() != Player.STATE_IDLE) {
+                warm.loadControl.setProfile(bufferProfile);
+                swapIn(warm);
+                return;
+            }
+            // it failed while warming
+            warm.player.release();
+        }
+        items.clear();
+        items.add(new Item(media, audioStream, videoStream));
+        ensurePlayer();
+        viewBinder.onNewTrack();
+        boolean withVideo = playerView != null;
+        // a stream containing both can't start its audio alone
+        isVideoJoinPending = withVideo && progressiveStart && videoStream != null;
+        setVideoRendererEnabled(withVideo && !isVideoJoinPending);
+        loadControl.setProfile(bufferProfile);
+        startTimer.start(isVideoJoinPending);
+        prepareSource(withVideo, true);
+    }
+
+    /**
+     * @param progressiveStart Whether the next tracks prepared start their audio before their video is buffered,
+     *                         the video joining at the next keyframe. Enabled by default
+     */
+    void setProgressiveStart(boolean progressiveStart){
+        this.progressiveStart = progressiveStart;
+    }
+
+    /**
+     * @return Memory use and rebuffers of every {@link BufferProfile} used so far
+     */
+    String getBufferStats(){
+        return bufferStats.toString();
+    }
+
+    /**
+     * @return The average time to first audio and time to first frame, for progressive and merged starts
+     */
+    String getStartTimes(){
+        return startTimer.summary();
+    }
+
+    /**
+     * Append a track after the one playing. The player starts buffering it while the current one plays,
+     * and moves to it with no gap when the current one ends.
+     * Any track enqueued before is replaced
+     * @param media The track
+     * @param audioStream Audio only stream of track, or a stream containing both audio and video
+     * @param videoStream Video only stream of track, null if audioStream already contains the video
+     */
+    void enqueue(ResolvedMedia media, ResolvedMedia.Stream audioStream, ResolvedMedia.Stream videoStream){
+        if (items.isEmpty()) return;
+        clearEnqueued();
+        Item item = new Item(media, audioStream, videoStream);
+        items.add(item);
+        concatenatedSource.addMediaSource(buildItemSource(item, isVideoSourcePrepared));
+    }
+
+    /**
+     * Remove the track enqueued with {@link #enqueue(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream)}, if any,
+     * e.g. when it's no longer the next one. The current track keeps playing and the player stops when it ends
+     */
+    void clearEnqueued(){
+        while (items.size() > 1) {
+            items.remove(items.size() - 1);
+            concatenatedSource.removeMediaSource(items.size());
+        }
+    }
+
+    /**
+     * Start buffering a track that may be played soon, e.g. suggested by the UI, in a separate player.
+     * If it's then given to {@link #prepare(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream, BufferProfile)} that player
+     * replaces the current one and starts right away.
+     * The pool is bounded: the track warmed the longest ago is evicted to make room.
+     * Only the audio is warmed, a video decoder per warm player could exhaust the hardware codecs
+     * @param media The track
+     * @param audioStream Audio only stream of track, or a stream containing both audio and video
+     * @param videoStream Video only stream of track, null if audioStream already contains the video
+     */
+    void warm(ResolvedMedia media, ResolvedMedia.Stream audioStream, ResolvedMedia.Stream videoStream){
+        String mediaId = media.videoId;
+        if (warmPool.containsKey(mediaId)) return;
+        if (!items.isEmpty() && items.get(0).mediaId.equals(mediaId)) return;
+        trimWarmPool(maxWarmPlayers - 1);
+
+        Log.d(TAG, "warm: " + mediaId);
+        DefaultTrackSelector warmTrackSelector = new DefaultTrackSelector(new AdaptiveTrackSelection.Factory(bandwidthMeter));
+        PlayerLoadControl warmLoadControl = new PlayerLoadControl(true, bufferStats);
+        SimpleExoPlayer warmPlayer = ExoPlayerFactory.newSimpleInstance(context, warmTrackSelector, warmLoadControl);
+        setVideoRendererEnabled(warmPlayer, warmTrackSelector, false);
+
+        Item item = new Item(media, audioStream, videoStream);
+        DynamicConcatenatingMediaSource source = new DynamicConcatenatingMediaSource();
+        source.addMediaSource(buildItemSource(item, false));
+        warmPlayer.prepare(source);
+        warmPool.put(mediaId, new WarmPlayer(item, warmPlayer, warmTrackSelector, warmLoadControl, source));
+    }
+
+    /**
+     * @return true if a warm player is buffering this track
+     */
+    boolean isWarm(String mediaId){
+        return warmPool.containsKey(mediaId);
+    }
+
+    /**
+     * @return Max number of tracks {@link #warm(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream)} keeps at once
+     */
+    int getMaxWarmPlayers(){
+        return maxWarmPlayers;
+    }
+
+    /**
+     * Release warm players, the oldest first, according to the memory pressure
+     * @param level The level given to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    void onTrimMemory(int level){
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) trimWarmPool(0);
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) trimWarmPool(1);
+    }
+
+    /**
+     * @return How many prepares were served by a warm player
+     */
+    int getWarmHitCount(){
+        return warmHitCount;
+    }
+
+    /**
+     * @return How many warm players were released without being played
+     */
+    int getWarmEvictionCount(){
+        return warmEvictionCount;
+    }
+
+    /**
+     * Release the oldest warm players until at most maxPlayers are left
+     */
+    private void trimWarmPool(int maxPlayers){
+        Iterator<WarmPlayer> iterator = warmPool.values().iterator();
+        while (warmPool.size() > Math.max(0, maxPlayers) && iterator.hasNext()) {
+            WarmPlayer warm = iterator.next();
+            iterator.remove();
+            Log.d(TAG, "trimWarmPool: evicting " + warm.item.mediaId);
+            warm.player.release();
+            warmEvictionCount++;
+        }
+    }
+
+    /**
+     * Make a warm player the one playing: the current {@link #player} is released
+     * and the listeners and the view move to the warm one
+     */
+    private void swapIn(WarmPlayer warm){
+        Log.d(TAG, "swapIn: " + warm.item.mediaId + " was warm");
+        warmHitCount++;
+        if (player != null) {
+            for (Player.EventListener listener : listeners) player.removeListener(listener);
+            viewBinder.unbind();
+            player.release();
+        }
+        player = warm.player;
+        trackSelector = warm.trackSelector;
+        loadControl = warm.loadControl;
+        loadControl.setWarming(false);
+        // already buffered, it says nothing about how long a start takes
+        startTimer.cancel();
+        player.addListener(startListener);
+        player.setVideoDebugListener(videoDebugListener);
+        items.clear();
+        items.add(warm.item);
+        concatenatedSource = warm.source;
+        // warmed audio only, see warm()
+        isVideoSourcePrepared = false;
+        boolean loadVideo = playerView != null && warm.item.videoStream != null;
+        // the audio, cached while warming, starts while the video catches up
+        isVideoJoinPending = loadVideo && progressiveStart;
+
+        for (Player.EventListener listener : listeners) player.addListener(listener);
+        if (playerView != null) viewBinder.bind(player, playerView);
+        setVideoRendererEnabled(playerView != null && !isVideoJoinPending);
+        if (loadVideo) {
+            selectVideoForView();
+            prepareSource(true, false);
+        }
+        // the listeners missed everything the player did while warming
+        for (Player.EventListener listener : listeners) {
+            listener.onPlayerStateChanged(player.getPlayWhenReady(), player.getPlaybackState());
+        }
+    }
+
+    /**
+     * @return The YouTube id of the track enqueued after the current one, null if there is none
+     */
+    String getEnqueuedMediaId(){
+        return items.size() > 1 ? items.get(1).mediaId : null;
+    }
+
+    /**
+     * Move to the track enqueued with {@link #enqueue(ResolvedMedia, ResolvedMedia.Stream, ResolvedMedia.Stream)}
+     * @return false if there is no such track
+     */
+    boolean skipToEnqueued(){
+        if (items.size() < 2 || player == null) return false;
+        player.seekTo(1, 0);
+        return true;
+    }
+
+    /**
+     * Must be called on every {@link Player.EventListener#onPositionDiscontinuity()}.
+     * If the player moved to the enqueued track, the finished one is released
+     * @return The YouTube id of the track that is now playing if it changed, null otherwise
+     */
+    String onPositionDiscontinuity(){
+        if (player == null) return null;
+        int current = player.getCurrentWindowIndex();
+        if (current <= 0 || current >= items.size()) return null;
+        for (int i = 0; i < current; i++) {
+            items.remove(0);
+            concatenatedSource.removeMediaSource(0);
+        }
+        return items.get(0).mediaId;
+    }
+
+    /**
+     * Rank again the video streams of the {@link #items} for the bound view: a track started without one
+     * got the smallest video, or the one for the view bound at the time. The audio playing is kept
+     */
+    private void selectVideoForView(){
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            if (item.videoStream == null) continue;
+            FormatRanker.Selection selection = formatRanker.select(item.media, getBitrateEstimate(), getPlayerViewHeight());
+            if (selection == null || selection.video == null || selection.video == item.videoStream) continue;
+            Log.d(TAG, "selectVideoForView: " + item.mediaId + " video itag " + item.videoStream.itag
+                    + " -> " + selection.video.itag);
+            items.set(i, new Item(item.media, item.audioStream, selection.video));
+        }
+    }
+
+    /**
+     * Prepare {@link #player} with the current {@link #items}
+     * @param withVideo Whether to include the video streams
+     * @param resetPosition Whether to start from the beginning or keep the current position
+     */
+    private void prepareSource(boolean withVideo, boolean resetPosition){
+        isVideoSourcePrepared = withVideo;
+        concatenatedSource = new DynamicConcatenatingMediaSource();
+        for (Item item : items) {
+            concatenatedSource.addMediaSource(buildItemSource(item, withVideo));
+        }
+        player.prepare(concatenatedSource, resetPosition, resetPosition);
+    }
+
+    /**
+     * @param item The track to load
+     * @param withVideo Whether to include the video stream, if the track has one
+     * @return The source of the audio stream of the track, merged with its video stream if needed
+     */
+    private MediaSource buildItemSource(Item item, boolean withVideo){
+        MediaSource audioSource = buildMediaSource(item.mediaId, item.audioStream);
+        if (!withVideo || item.videoStream == null) return audioSource;
+        MediaSource videoSource = buildMediaSource(item.mediaId, item.videoStream);
+        return new MergingMediaSource(audioSource, videoSource);
+    }
+
+    /**
+     * Build the source of a single stream, read through the {@link #mediaCache}
+     * @param mediaId The YouTube id of the track
+     * @param stream The stream of the track to load
+     */
+    private MediaSource buildMediaSource(String mediaId, ResolvedMedia.Stream stream){
+        if (dataSourceFactory == null) {
+            MediaCache mediaCache = getMediaCache();
+            String userAgent = Util.getUserAgent(context, context.getString(R.string.app_name));
+            // the bandwidth meter must see every transfer, otherwise it never produces an estimate
+            dataSourceFactory = mediaCache.wrap(new DefaultDataSourceFactory(context, userAgent,
+                    mediaCache.countMisses(bandwidthMeter)));
+        }
+        return new ExtractorMediaSource(Uri.parse(stream.url), dataSourceFactory, new DefaultExtractorsFactory(),
+                null, null, MediaCache.keyOf(mediaId, stream.itag));
+    }
+
+    /**
+     * Enable or disable the video renderer. A disabled renderer has no selected track,
+     * so its stream stops being downloaded and decoded
+     * @param enabled Whether video should be rendered
+     */
+    private void setVideoRendererEnabled(boolean enabled){
+        if (player == null) return;
+        setVideoRendererEnabled(player, trackSelector, enabled);
+    }
+
+    private static void setVideoRendererEnabled(SimpleExoPlayer player, DefaultTrackSelector trackSelector, boolean enabled){
+        for (int i = 0; i < player.getRendererCount(); i++) {
+            if (player.getRendererType(i) == C.TRACK_TYPE_VIDEO) trackSelector.setRendererDisabled(i, !enabled);
+        }
+    }
+
+    /**
+     * @return The media cache used by this player, opened on first use since it scans its whole directory
+     */
+    MediaCache getMediaCache(){
+        if (mediaCache == null) {
+            long start = StartupTrace.begin();
+            mediaCache = MediaCache.getInstance(context);
+            StartupTrace.end("media cache", start);
+        }
+        return mediaCache;
     }
 
     /**
@@ -88,6 +797,7 @@ public class PlayerManager {
      */
     void play(){
         Log.d(TAG, "play: called");
+        ensurePlayer();
         player.setVolume(1.0f);
         player.setPlayWhenReady(true);
     }
@@ -97,6 +807,7 @@ public class PlayerManager {
      * @see Player#setPlayWhenReady(boolean)
      */
     void pause(){
+        if (player == null) return;
         player.setVolume(1.0f);
         player.setPlayWhenReady(false);
     }
@@ -106,6 +817,7 @@ public class PlayerManager {
      * @see Player#stop()
      */
     void stop(){
+        if (player == null) return;
         player.stop();
     }
 
@@ -113,29 +825,115 @@ public class PlayerManager {
      * Lower playback volume, usually used with {@link AudioFocusCallback#onAudioFocusLossTransientCanDuck()}
      */
     void duck(){
+        if (player == null) return;
         player.setVolume(0.2f);
     }
 
     /**
-     * Seek to a particular point in time
-     * @param position in seconds
+     * Seek to a particular point in time of the current track
+     * @param position in milliseconds
+     */
+    void seekTo(long position) {
+        cancelScrub();
+        if (player == null) return;
+        player.seekTo(position);
+    }
+
+    /**
+     * Seek while the user drags the seek bar, so that the video follows the finger.
+     * Seeks are issued at most every {@link #SCRUB_INTERVAL_MS}, and never while the previous one is still buffering:
+     * in between only the last position is kept, so a fast drag never queues up seeks.
+     * The drag must end with an exact {@link #seekTo(long)}, which drops the pending scrubbing seek
+     *
+     * @param position in milliseconds
      */
-    void seekTo(int position) {
-        player.seekTo(position * 1000);
+    void scrubTo(long position) {
+        scrubRequestCount++;
+        boolean scheduled = pendingScrubPosition >= 0;
+        pendingScrubPosition = position;
+        if (scheduled) return;
+        long wait = lastScrubSeekTime + SCRUB_INTERVAL_MS - SystemClock.elapsedRealtime();
+        handler.postDelayed(scrubRunnable, Math.max(0, wait));
     }
 
     /**
+     * @return How many positions were given to {@link #scrubTo(long)}
+     */
+    int getScrubRequestCount() {
+        return scrubRequestCount;
+    }
+
+    /**
+     * @return How many seeks {@link #scrubTo(long)} actually issued
+     */
+    int getScrubSeekCount() {
+        return scrubSeekCount;
+    }
+
+    private void cancelScrub() {
+        pendingScrubPosition = -1;
+        handler.removeCallbacks(scrubRunnable);
+    }
+
+    /**
+     * Release {@link #player} and the warm players and forget the listeners, the next service instance builds a new one.
+     * A {@link #prewarm()} not done yet is cancelled. Must be called on the playback thread
      * @see Player#release()
      */
     void destroy(){
+        cancelScrub();
+        handler.removeCallbacks(prewarmRunnable);
+        Looper.myQueue().removeIdleHandler(prewarmIdleHandler);
+        trimWarmPool(0);
+        listeners.clear();
+        items.clear();
+        if (player == null) return;
+        viewBinder.unbind();
         player.release();
+        player = null;
+        trackSelector = null;
+        loadControl = null;
     }
 
     /**
-     * Bind this player to a view
+     * Bind this player to a view.
+     * If playback started in audio only mode the video is loaded and joins the audio at the current position.
+     * Doesn't build {@link #player}, the view gets it when it's built.
+     * Can be called from any thread, the binding happens on the playback thread
      * @param playerView The view to bind to.
      */
-    public void setPlayerView(SimpleExoPlayerView playerView) {
-        playerView.setPlayer(player);
+    public void setPlayerView(final SimpleExoPlayerView playerView) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                PlayerManager.this.playerView = playerView;
+                if (player == null) return;
+                viewBinder.bind(player, playerView);
+                // a progressive start enables it once the audio is ready
+                setVideoRendererEnabled(!isVideoJoinPending);
+                if (!items.isEmpty() && !isVideoSourcePrepared && player.getPlaybackState() != Player.STATE_IDLE) {
+                    Log.d(TAG, "setPlayerView: leaving audio only mode");
+                    selectVideoForView();
+                    prepareSource(true, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unbind the view and switch to audio only mode, e.g. when the app goes in background.
+     * Can be called from any thread
+     */
+    public void clearPlayerView() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (playerView == null) return;
+                Log.d(TAG, "clearPlayerView: entering audio only mode");
+                viewBinder.unbind();
+                playerView = null;
+                setVideoRendererEnabled(false);
+            }
+        });
     }
 }
@@ -0,0 +1,93 @@
+package le1.mediaplayback.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.SurfaceView;
+import android.view.TextureView;
+import android.view.View;
+
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.ui.AspectRatioFrameLayout;
+import com.google.android.exoplayer2.ui.SimpleExoPlayerView;
+
+import le1.mediaplayback.R;
+
+/**
+ * Shows the video of a {@link SimpleExoPlayer} living on the playback thread in a {@link SimpleExoPlayerView}.
+ * <p>
+ * {@link SimpleExoPlayerView#setPlayer(SimpleExoPlayer)} can't be used: the view would receive the player events
+ * on the thread that built the player and update itself from there. Only the surface is handed to the player,
+ * the events that change the view (video size, first frame) are posted to the main thread.
+ * Every method but the listener ones must be called on the playback thread
+ */
+class PlayerViewBinder implements SimpleExoPlayer.VideoListener {
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private SimpleExoPlayer player;
+    private SimpleExoPlayerView playerView;
+
+    /**
+     * Show the video of a player in a view, replacing the previous binding
+     */
+    void bind(SimpleExoPlayer player, SimpleExoPlayerView playerView) {
+        if (this.player == player && this.playerView == playerView) return;
+        unbind();
+        this.player = player;
+        this.playerView = playerView;
+        View surface = playerView.getVideoSurfaceView();
+        if (surface instanceof SurfaceView) player.setVideoSurfaceView((SurfaceView) surface);
+        else if (surface instanceof TextureView) player.setVideoTextureView((TextureView) surface);
+        player.setVideoListener(this);
+        setShutterVisible(playerView, true);
+    }
+
+    /**
+     * Detach the player from the view, if bound
+     */
+    void unbind() {
+        if (player == null) return;
+        View surface = playerView.getVideoSurfaceView();
+        if (surface instanceof SurfaceView) player.clearVideoSurfaceView((SurfaceView) surface);
+        else if (surface instanceof TextureView) player.clearVideoTextureView((TextureView) surface);
+        player.clearVideoListener(this);
+        setShutterVisible(playerView, true);
+        player = null;
+        playerView = null;
+    }
+
+    /**
+     * Hide the last frame of the previous track until the new one renders its first
+     */
+    void onNewTrack() {
+        if (playerView != null) setShutterVisible(playerView, true);
+    }
+
+    @Override
+    public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+        final SimpleExoPlayerView view = playerView;
+        if (view == null || height == 0) return;
+        final float aspectRatio = width * pixelWidthHeightRatio / height;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                AspectRatioFrameLayout contentFrame = view.findViewById(R.id.exo_content_frame);
+                if (contentFrame != null) contentFrame.setAspectRatio(aspectRatio);
+            }
+        });
+    }
+
+    @Override
+    public void onRenderedFirstFrame() {
+        if (playerView != null) setShutterVisible(playerView, false);
+    }
+
+    private void setShutterVisible(final SimpleExoPlayerView view, final boolean visible) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                View shutter = view.findViewById(R.id.exo_shutter);
+                if (shutter != null) shutter.setVisibility(visible ? View.VISIBLE : View.INVISIBLE);
+            }
+        });
+    }
+}
@@ -0,0 +1,177 @@
+package le1.mediaplayback.service;
+
+import android.util.SparseArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import at.huber.youtubeExtractor.VideoMeta;
+import at.huber.youtubeExtractor.YtFile;
+
+/**
+ * Immutable result of a YouTube extraction: the metadata of the video
+ * and the signed url of every stream (itag) that was found.
+ * Unlike {@link YtFile} and {@link VideoMeta} it can be stored and restored, see {@link StreamCache}
+ */
+class ResolvedMedia {
+
+    /**
+     * A single stream of the video, the equivalent of a {@link YtFile}
+     */
+    static class Stream {
+        final int itag;
+        final String ext;
+        final int height;
+        final int audioBitrate;
+        final String url;
+
+        Stream(int itag, String ext, int height, int audioBitrate, String url) {
+            this.itag = itag;
+            this.ext = ext;
+            this.height = height;
+            this.audioBitrate = audioBitrate;
+            this.url = url;
+        }
+
+        /**
+         * @return true if the stream has no video track
+         */
+        boolean isAudioOnly() {
+            return height <= 0 && audioBitrate > 0;
+        }
+
+        /**
+         * @return true if the stream has no audio track
+         */
+        boolean isVideoOnly() {
+            return height > 0 && audioBitrate <= 0;
+        }
+
+        /**
+         * @return true if the stream uses a WebM container, so Opus/Vorbis audio or VP9 video
+         */
+        boolean isWebm() {
+            return "webm".equals(ext);
+        }
+    }
+
+    final String videoId;
+    final String title;
+    final String channelId;
+    final String imageUrl;
+    /**
+     * Duration of the video in seconds
+     */
+    final long duration;
+    final List<Stream> streams;
+
+    /**
+     * Time (in milliseconds since epoch) after which at least one of the {@link #streams} urls is no longer valid,
+     * or {@link Long#MAX_VALUE} if none of them declares an expiration
+     */
+    final long expiresAt;
+
+    ResolvedMedia(String videoId, String title, String channelId, String imageUrl, long duration, List<Stream> streams) {
+        this.videoId = videoId;
+        this.title = title;
+        this.channelId = channelId;
+        this.imageUrl = imageUrl;
+        this.duration = duration;
+        this.streams = Collections.unmodifiableList(streams);
+
+        long expiresAt = Long.MAX_VALUE;
+        for (Stream s : streams) {
+            expiresAt = Math.min(expiresAt, parseExpire(s.url));
+        }
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Build an instance from the values given to {@link at.huber.youtubeExtractor.YouTubeExtractor#onExtractionComplete(SparseArray, VideoMeta)}
+     */
+    static ResolvedMedia fromExtraction(SparseArray<YtFile> itags, VideoMeta videoMeta) {
+        List<Stream> streams = new ArrayList<>(itags.size());
+        for (int i = 0; i < itags.size(); i++) {
+            YtFile file = itags.valueAt(i);
+            streams.add(new Stream(itags.keyAt(i), file.getFormat().getExt(), file.getFormat().getHeight(),
+                    file.getFormat().getAudioBitrate(), file.getUrl()));
+        }
+        return new ResolvedMedia(videoMeta.getVideoId(), videoMeta.getTitle(), videoMeta.getChannelId(),
+                videoMeta.getMaxResImageUrl(), videoMeta.getVideoLength(), streams);
+    }
+
+    /**
+     * @param itag The YouTube format id
+     * @return The stream with that itag, null if the video does not have it
+     */
+    Stream getStream(int itag) {
+        for (Stream s : streams) {
+            if (s.itag == itag) return s;
+        }
+        return null;
+    }
+
+    /**
+     * @param now          Current time in milliseconds since epoch
+     * @param marginMillis How long the urls must stay valid after now
+     * @return true if every url is still valid for at least marginMillis
+     */
+    boolean isValid(long now, long marginMillis) {
+        return expiresAt == Long.MAX_VALUE || expiresAt - marginMillis > now;
+    }
+
+    /**
+     * Reads the <code>expire</code> parameter (seconds since epoch) of a signed stream url
+     *
+     * @return The expiration in milliseconds, {@link Long#MAX_VALUE} if not present
+     */
+    private static long parseExpire(String url) {
+        int start = url.indexOf("?expire=");
+        if (start < 0) start = url.indexOf("&expire=");
+        if (start < 0) return Long.MAX_VALUE;
+        start += "?expire=".length();
+        int end = url.indexOf('&', start);
+        try {
+            return Long.parseLong(url.substring(start, end < 0 ? url.length() : end)) * 1000;
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Stream s : streams) {
+            array.put(new JSONObject()
+                    .put("itag", s.itag)
+                    .put("ext", s.ext)
+                    .put("height", s.height)
+                    .put("audioBitrate", s.audioBitrate)
+                    .put("url", s.url));
+        }
+        return new JSONObject()
+                .put("videoId", videoId)
+                .put("title", title)
+                .put("channelId", channelId)
+                .put("imageUrl", imageUrl)
+                .put("duration", duration)
+                .put("streams", array);
+    }
+
+    static ResolvedMedia fromJson(JSONObject json) throws JSONException {
+        JSONArray array = json.getJSONArray("streams");
+        List<Stream> streams = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject s = array.getJSONObject(i);
+            streams.add(new Stream(s.getInt("itag"), s.optString("ext", null), s.getInt("height"),
+                    s.getInt("audioBitrate"), s.getString("url")));
+        }
+        return new ResolvedMedia(json.getString("videoId"), json.optString("title", null),
+                json.optString("channelId", null), json.optString("imageUrl", null),
+                json.getLong("duration"), streams);
+    }
+}
@@ -0,0 +1,215 @@
+package le1.mediaplayback.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory prefix index over the titles and channels of the {@link MediaCatalog}.
+ * <p>
+ * Every word is indexed under each of its prefixes up to {@link #MAX_PREFIX_LENGTH} characters,
+ * so a query word is a single hash lookup. A query matches the videos that have, for every query word,
+ * a word starting with it; candidates come from the shortest posting list and are verified
+ * against the words of the video, which also handles words longer than the indexed prefixes
+ * and videos whose title changed since they were indexed.
+ * <p>
+ * Documents can be added at any time, one by one. Thread safe
+ */
+class SearchIndex {
+    private static final int MAX_PREFIX_LENGTH = 8;
+
+    /**
+     * Score of a query word matching a whole word, and a prefix of a word
+     */
+    private static final int SCORE_WORD = 3;
+    private static final int SCORE_PREFIX = 2;
+    /**
+     * Added when the match is in the title instead of the channel
+     */
+    private static final int SCORE_TITLE = 1;
+
+    /**
+     * A growable list of document ids, in insertion order
+     */
+    private static class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            // a document is added once per prefix even if more of its words share it
+            if (size > 0 && docs[size - 1] == doc) return;
+            if (size == docs.length) docs = Arrays.copyOf(docs, size * 2);
+            docs[size++] = doc;
+        }
+    }
+
+    private final Map<String, Integer> docOf = new HashMap<>();
+    private final List<String> videoIds = new ArrayList<>();
+    /**
+     * Words of the title and of the channel of each document, normalized
+     */
+    private final List<String[]> titleWords = new ArrayList<>();
+    private final List<String[]> channelWords = new ArrayList<>();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * Index a video, or index it again if its title or channel changed
+     */
+    synchronized void add(String videoId, String title, String channel) {
+        String[] titleTokens = tokenize(title);
+        String[] channelTokens = tokenize(channel);
+
+        Integer existing = docOf.get(videoId);
+        int doc;
+        if (existing != null) {
+            doc = existing;
+            if (Arrays.equals(titleWords.get(doc), titleTokens) && Arrays.equals(channelWords.get(doc), channelTokens)) return;
+            // the old postings stay, they are filtered out when verifying the candidates
+            titleWords.set(doc, titleTokens);
+            channelWords.set(doc, channelTokens);
+        } else {
+            doc = videoIds.size();
+            docOf.put(videoId, doc);
+            videoIds.add(videoId);
+            titleWords.add(titleTokens);
+            channelWords.add(channelTokens);
+        }
+        indexWords(doc, titleTokens);
+        indexWords(doc, channelTokens);
+    }
+
+    /**
+     * Index a video unless it already is, so that an older copy of its title never replaces the indexed one
+     *
+     * @return true if the video was added
+     */
+    synchronized boolean addIfAbsent(String videoId, String title, String channel) {
+        if (docOf.containsKey(videoId)) return false;
+        add(videoId, title, channel);
+        return true;
+    }
+
+    synchronized int size() {
+        return videoIds.size();
+    }
+
+    /**
+     * @param query Words typed or spoken by the user, every one of them is a prefix
+     * @param limit Max number of results
+     * @return The ids of the matching videos, the best match first
+     */
+    List<String> search(String query, int limit) {
+        String[] queryWords = tokenize(query);
+        if (queryWords.length == 0 || limit <= 0) return new ArrayList<>(0);
+
+        synchronized (this) {
+            // candidates come from the rarest query word
+            Postings shortest = null;
+            for (String word : queryWords) {
+                Postings p = postings.get(prefixOf(word));
+                if (p == null) return new ArrayList<>(0);
+                if (shortest == null || p.size < shortest.size) shortest = p;
+            }
+
+            int[] bestDocs = new int[limit];
+            int[] bestScores = new int[limit];
+            int found = 0;
+            int lastDoc = -1;
+            for (int i = 0; i < shortest.size; i++) {
+                int doc = shortest.docs[i];
+                if (doc == lastDoc) continue;
+                lastDoc = doc;
+                int score = score(doc, queryWords);
+                if (score <= 0 || contains(bestDocs, found, doc)) continue;
+
+                // insertion into the top results, kept sorted by score then by document age
+                if (found == limit && score <= bestScores[limit - 1]) continue;
+                int pos = found < limit ? found++ : limit - 1;
+                while (pos > 0 && bestScores[pos - 1] < score) {
+                    bestDocs[pos] = bestDocs[pos - 1];
+                    bestScores[pos] = bestScores[pos - 1];
+                    pos--;
+                }
+                bestDocs[pos] = doc;
+                bestScores[pos] = score;
+            }
+
+            List<String> results = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) results.add(videoIds.get(bestDocs[i]));
+            return results;
+        }
+    }
+
+    /**
+     * @return The score of a document for the query, 0 if a query word matches none of its words
+     */
+    private int score(int doc, String[] queryWords) {
+        int total = 0;
+        for (String queryWord : queryWords) {
+            int titleScore = score(titleWords.get(doc), queryWord);
+            int channelScore = score(channelWords.get(doc), queryWord);
+            if (titleScore == 0 && channelScore == 0) return 0;
+            total += titleScore > 0 ? titleScore + SCORE_TITLE : channelScore;
+        }
+        return total;
+    }
+
+    /**
+     * A document indexed again appears twice in its postings
+     */
+    private static boolean contains(int[] docs, int count, int doc) {
+        for (int i = 0; i < count; i++) {
+            if (docs[i] == doc) return true;
+        }
+        return false;
+    }
+
+    private static int score(String[] words, String queryWord) {
+        int best = 0;
+        for (String word : words) {
+            if (word.equals(queryWord)) return SCORE_WORD;
+            if (word.startsWith(queryWord)) best = SCORE_PREFIX;
+        }
+        return best;
+    }
+
+    private void indexWords(int doc, String[] words) {
+        for (String word : words) {
+            int max = Math.min(word.length(), MAX_PREFIX_LENGTH);
+            for (int length = 1; length <= max; length++) {
+                String prefix = word.substring(0, length);
+                Postings p = postings.get(prefix);
+                if (p == null) {
+                    p = new Postings();
+                    postings.put(prefix, p);
+                }
+                p.add(doc);
+            }
+        }
+    }
+
+    private static String prefixOf(String word) {
+        return word.length() > MAX_PREFIX_LENGTH ? word.substring(0, MAX_PREFIX_LENGTH) : word;
+    }
+
+    /**
+     * Split a text in lowercase words made of letters and digits
+     */
+    static String[] tokenize(String text) {
+        if (text == null) return new String[0];
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) start = i;
+            else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+}
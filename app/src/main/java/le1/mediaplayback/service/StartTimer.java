@@ -0,0 +1,93 @@
+package le1.mediaplayback.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures how long each track takes to start: time to first audio (the player is playing)
+ * and time to first frame (the first video frame is rendered), both since the track was prepared.
+ * The averages are kept separately for progressive starts, where the audio doesn't wait for the video,
+ * and merged ones, so that the two can be compared
+ */
+class StartTimer {
+    private static final String TAG = "LE1_StartTimer";
+
+    private static final int MERGED = 0;
+    private static final int PROGRESSIVE = 1;
+
+    private final long[] audioTotal = new long[2];
+    private final int[] audioCount = new int[2];
+    private final long[] frameTotal = new long[2];
+    private final int[] frameCount = new int[2];
+
+    /**
+     * When the current track was prepared, 0 if it's not being measured
+     */
+    private long preparedAt;
+    private int mode;
+    private boolean audioStarted;
+    private boolean frameRendered;
+
+    /**
+     * Start measuring a new track
+     *
+     * @param progressive Whether the audio starts before the video is buffered
+     */
+    void start(boolean progressive) {
+        preparedAt = SystemClock.elapsedRealtime();
+        mode = progressive ? PROGRESSIVE : MERGED;
+        audioStarted = false;
+        frameRendered = false;
+    }
+
+    /**
+     * Stop measuring the current track, e.g. it was replaced by a warm player that was already buffered
+     */
+    void cancel() {
+        preparedAt = 0;
+    }
+
+    /**
+     * Called when the player starts playing
+     */
+    void onAudioStarted() {
+        if (preparedAt == 0 || audioStarted) return;
+        audioStarted = true;
+        long elapsed = SystemClock.elapsedRealtime() - preparedAt;
+        audioTotal[mode] += elapsed;
+        audioCount[mode]++;
+        Log.d(TAG, modeName(mode) + " time to first audio " + elapsed + " ms");
+    }
+
+    /**
+     * Called when the first video frame is rendered
+     */
+    void onFirstFrame() {
+        if (preparedAt == 0 || frameRendered) return;
+        frameRendered = true;
+        long elapsed = SystemClock.elapsedRealtime() - preparedAt;
+        frameTotal[mode] += elapsed;
+        frameCount[mode]++;
+        Log.d(TAG, modeName(mode) + " time to first frame " + elapsed + " ms");
+    }
+
+    /**
+     * @return The average times of both modes, e.g. "progressive: audio 640 ms (3), frame 1210 ms (2)"
+     */
+    String summary() {
+        return summary(PROGRESSIVE) + ", " + summary(MERGED);
+    }
+
+    private String summary(int mode) {
+        return modeName(mode) + ": audio " + average(audioTotal[mode], audioCount[mode]) + " ms (" + audioCount[mode]
+                + "), frame " + average(frameTotal[mode], frameCount[mode]) + " ms (" + frameCount[mode] + ")";
+    }
+
+    private static long average(long total, int count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    private static String modeName(int mode) {
+        return mode == PROGRESSIVE ? "progressive" : "merged";
+    }
+}
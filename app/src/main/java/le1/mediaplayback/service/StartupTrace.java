@@ -0,0 +1,68 @@
+package le1.mediaplayback.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures how long each phase of the initialisation takes, e.g. building the player.
+ * Every phase is logged when it ends, {@link #summary()} lists all of them
+ * <pre>
+ * long start = StartupTrace.begin();
+ * ...
+ * StartupTrace.end("phase", start);
+ * </pre>
+ */
+final class StartupTrace {
+    private static final String TAG = "LE1_StartupTrace";
+
+    /**
+     * Duration in microseconds of every phase ended so far, in order. Guarded by itself
+     */
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * @return The start time of a phase, to be given to {@link #end(String, long)}
+     */
+    static long begin() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record a phase. A phase ended more than once accumulates its durations
+     *
+     * @param phase The name of the phase
+     * @param start The value returned by {@link #begin()}
+     */
+    static void end(String phase, long start) {
+        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+        synchronized (phases) {
+            Long previous = phases.get(phase);
+            phases.put(phase, previous == null ? micros : previous + micros);
+        }
+        Log.d(TAG, phase + ": " + formatMillis(micros) + " ms on " + Thread.currentThread().getName());
+    }
+
+    /**
+     * @return Every phase recorded with its duration, e.g. "session 4.2 ms, player 38.0 ms"
+     */
+    static String summary() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (phases) {
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                if (builder.length() > 0) builder.append(", ");
+                builder.append(phase.getKey()).append(' ').append(formatMillis(phase.getValue())).append(" ms");
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String formatMillis(long micros) {
+        return micros / 1000 + "." + (micros % 1000) / 100;
+    }
+}
@@ -0,0 +1,160 @@
+package le1.mediaplayback.service;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Two-tier cache of {@link ResolvedMedia}: an in-memory LRU in front of an on-disk store.
+ * Saves a full YouTube extraction when the same video is prepared again while its urls are still valid
+ */
+class StreamCache {
+    private static final String TAG = "LE1_StreamCache";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MEMORY_ENTRIES = 32;
+    private static final int DISK_ENTRIES = 256;
+
+    /**
+     * Urls must stay valid at least this much longer than the video duration,
+     * so that playback does not start with urls that expire before the end
+     */
+    private static final long EXPIRY_MARGIN_MS = 5 * 60 * 1000;
+
+    private static StreamCache INSTANCE;
+
+    private final LruCache<String, ResolvedMedia> memory = new LruCache<>(MEMORY_ENTRIES);
+    private final File directory;
+
+    static synchronized StreamCache getInstance(Context c) {
+        if (INSTANCE == null) INSTANCE = new StreamCache(c);
+        return INSTANCE;
+    }
+
+    /**
+     * @param context Application context
+     */
+    private StreamCache(Context context) {
+        directory = new File(context.getApplicationContext().getCacheDir(), "streams");
+        if (!directory.exists() && !directory.mkdirs()) Log.e(TAG, "unable to create " + directory);
+    }
+
+    /**
+     * @param videoId The YouTube id of the video
+     * @return The cached media if present and still playable, null otherwise
+     */
+    synchronized ResolvedMedia get(String videoId) {
+        ResolvedMedia media = memory.get(videoId);
+        if (media == null) {
+            media = readFromDisk(videoId);
+            if (media != null) memory.put(videoId, media);
+        }
+        if (media != null && !isValid(media)) {
+            remove(videoId);
+            return null;
+        }
+        return media;
+    }
+
+    /**
+     * Store an extraction result in both tiers
+     */
+    synchronized void put(ResolvedMedia media) {
+        if (!isValid(media)) return;
+        memory.put(media.videoId, media);
+        writeToDisk(media);
+    }
+
+    /**
+     * Remove a video from both tiers, e.g. when its urls are rejected by the server
+     */
+    synchronized void remove(String videoId) {
+        memory.remove(videoId);
+        //noinspection ResultOfMethodCallIgnored
+        fileOf(videoId).delete();
+    }
+
+    private boolean isValid(ResolvedMedia media) {
+        return media.isValid(System.currentTimeMillis(), media.duration * 1000 + EXPIRY_MARGIN_MS);
+    }
+
+    private File fileOf(String videoId) {
+        return new File(directory, videoId + ".json");
+    }
+
+    private ResolvedMedia readFromDisk(String videoId) {
+        File file = fileOf(videoId);
+        if (!file.exists()) return null;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[(int) file.length()];
+            int read = 0;
+            while (read < buffer.length) {
+                int n = in.read(buffer, read, buffer.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return ResolvedMedia.fromJson(new JSONObject(new String(buffer, 0, read, UTF_8)));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "readFromDisk: " + videoId, e);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeToDisk(ResolvedMedia media) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(fileOf(media.videoId));
+            out.write(media.toJson().toString().getBytes(UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "writeToDisk: " + media.videoId, e);
+        } finally {
+            closeQuietly(out);
+        }
+        trimDisk();
+    }
+
+    /**
+     * Keep at most {@link #DISK_ENTRIES} files, deleting the least recently written ones
+     */
+    private void trimDisk() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= DISK_ENTRIES) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length - DISK_ENTRIES; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package le1.mediaplayback.service;
+
+/**
+ * Turns a media id into the streams that can be played for it.
+ * Implementations are called on a background thread by {@link ExtractionCoordinator}
+ * and are free to block until the result is available
+ */
+interface StreamResolver {
+
+    /**
+     * @param mediaId The id of the media to resolve
+     * @return The metadata and the streams of the media, never null
+     * @throws InterruptedException if the calling thread is interrupted, i.e. the request was cancelled
+     * @throws Exception            if the media can't be resolved
+     */
+    ResolvedMedia resolve(String mediaId) throws Exception;
+}
@@ -0,0 +1,56 @@
+package le1.mediaplayback.service;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import java.io.IOException;
+
+import at.huber.youtubeExtractor.VideoMeta;
+import at.huber.youtubeExtractor.YouTubeExtractor;
+import at.huber.youtubeExtractor.YtFile;
+
+/**
+ * {@link StreamResolver} backed by {@link YouTubeExtractor}, media ids are YouTube video ids
+ */
+class YouTubeStreamResolver implements StreamResolver {
+    private final Context context;
+
+    /**
+     * @param context Application context
+     */
+    YouTubeStreamResolver(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Runs a {@link YouTubeExtractor} on the calling thread.
+     * <p>
+     * {@link YouTubeExtractor#extract(String, boolean, boolean)} would queue it on the process wide serial executor of
+     * {@link android.os.AsyncTask}, so that extractions run one after another whatever the bound of the
+     * {@link ExtractionCoordinator}. The work is done in {@link YouTubeExtractor#onPreExecute()} instead, which extract()
+     * calls right away on this thread, then the task is cancelled and never runs
+     */
+    @Override
+    public ResolvedMedia resolve(final String mediaId) throws Exception {
+        final String url = "https://www.youtube.com/watch?v=" + mediaId;
+        final ResolvedMedia[] result = new ResolvedMedia[1];
+        YouTubeExtractor extractor = new YouTubeExtractor(context) {
+            @Override
+            protected void onPreExecute() {
+                SparseArray<YtFile> itags = doInBackground(url);
+                cancel(false);
+                onPostExecute(itags);
+            }
+
+            @Override
+            protected void onExtractionComplete(SparseArray<YtFile> itags, VideoMeta videoMeta) {
+                if (itags != null) result[0] = ResolvedMedia.fromExtraction(itags, videoMeta);
+            }
+        };
+        extractor.extract(url, true, true);
+
+        if (Thread.interrupted()) throw new InterruptedException("extraction of " + mediaId + " cancelled");
+        if (result[0] == null) throw new IOException("itags is null for " + mediaId);
+        return result[0];
+    }
+}
@@ -0,0 +1,76 @@
+package le1.mediaplayback;
+
+import org.junit.Test;
+
+import java.net.URLEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link StoryboardSpec} parsing the storyboard spec of a video info response
+ */
+public class StoryboardSpecTest {
+    private static final String SPEC = "https://i.ytimg.com/sb/video/storyboard3_L$L/$N.jpg"
+            + "|48#27#100#10#10#0#default#sigh0"
+            + "|80#45#90#10#10#2000#M$M#sigh1"
+            + "|160#90#90#5#5#2000#M$M#sigh2";
+
+    @Test
+    public void picksLargestLevelUpToMaxTileWidth() throws Exception {
+        StoryboardSpec spec = StoryboardSpec.parse(SPEC);
+        assertEquals(160, spec.tileWidth);
+        assertEquals(90, spec.tileHeight);
+        assertEquals(90, spec.count);
+        assertEquals(25, spec.getTilesPerSheet());
+        assertEquals(2000, spec.interval);
+    }
+
+    @Test
+    public void picksSmallestLevelWhenAllAreLarger() throws Exception {
+        StoryboardSpec spec = StoryboardSpec.parse("https://host/sb/$L/$N.jpg"
+                + "|320#180#50#3#3#0#M$M#big|240#135#50#4#4#0#M$M#small");
+        assertEquals(240, spec.tileWidth);
+        assertEquals("https://host/sb/1/M0.jpg?sigh=small", spec.sheetUrl(0));
+    }
+
+    @Test
+    public void sheetUrlIsSigned() throws Exception {
+        StoryboardSpec spec = StoryboardSpec.parse(SPEC);
+        assertEquals("https://i.ytimg.com/sb/video/storyboard3_L2/M3.jpg?sigh=sigh2", spec.sheetUrl(3));
+
+        StoryboardSpec single = StoryboardSpec.parse("https://host/sb/$L/$N.jpg?sqp=x|48#27#100#10#10#0#default#sigh0");
+        assertEquals("https://host/sb/0/default.jpg?sqp=x&sigh=sigh0", single.sheetUrl(0));
+    }
+
+    @Test
+    public void tileOfPosition() throws Exception {
+        StoryboardSpec spec = StoryboardSpec.parse(SPEC);
+        // one tile every interval
+        assertEquals(0, spec.tileOf(1999, 180000));
+        assertEquals(30, spec.tileOf(60000, 180000));
+        assertEquals(89, spec.tileOf(600000, 180000));
+
+        // spread over the video when there is no interval
+        StoryboardSpec spread = StoryboardSpec.parse("https://host/$L/$N.jpg|160#90#100#5#5#0#M$M#s");
+        assertEquals(50, spread.tileOf(50000, 100000));
+        assertEquals(99, spread.tileOf(100000, 100000));
+        assertEquals(0, spread.tileOf(-1, 100000));
+    }
+
+    @Test
+    public void readsSpecFromVideoInfo() throws Exception {
+        String info = "status=ok&storyboard_spec=" + URLEncoder.encode(SPEC, "UTF-8") + "&title=x";
+        assertEquals("https://i.ytimg.com/sb/video/storyboard3_L2/M0.jpg?sigh=sigh2",
+                StoryboardSpec.fromVideoInfo(info).sheetUrl(0));
+        assertNull(StoryboardSpec.fromVideoInfo("status=ok&title=x"));
+    }
+
+    @Test
+    public void malformedSpecIsIgnored() throws Exception {
+        assertNull(StoryboardSpec.parse(null));
+        assertNull(StoryboardSpec.parse("https://host/$L/$N.jpg"));
+        assertNull(StoryboardSpec.parse("https://host/$L/$N.jpg|160#90#x#5#5#0#M$M#s"));
+        assertNull(StoryboardSpec.parse("https://host/$L/$N.jpg|160#90#100"));
+    }
+}
@@ -0,0 +1,171 @@
+package le1.mediaplayback.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static le1.mediaplayback.service.FakeStreamResolver.audio;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ExtractionCoordinator} resolving through a {@link FakeStreamResolver}, without the {@link StreamCache}.
+ * Callbacks are run on the extraction threads, or queued until the test runs them
+ */
+public class ExtractionCoordinatorTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FakeStreamResolver resolver;
+    private ExtractionCoordinator coordinator;
+
+    @Before
+    public void setUp() {
+        resolver = new FakeStreamResolver();
+        for (String id : new String[]{"a", "b"}) resolver.put(id, audio(140, "m4a", 128));
+        coordinator = new ExtractionCoordinator(resolver, null, DIRECT);
+    }
+
+    @After
+    public void tearDown() {
+        coordinator.shutdown();
+    }
+
+    @Test
+    public void concurrentRequestsShareOneExtraction() throws Exception {
+        CountDownLatch gate = resolver.block("a");
+        RecordingCallback requested = new RecordingCallback(1);
+        RecordingCallback prefetched = new RecordingCallback(1);
+        coordinator.request("a", requested);
+        coordinator.prefetch("a", prefetched);
+        gate.countDown();
+
+        requested.await();
+        prefetched.await();
+        assertEquals(1, resolver.getResolveCount("a"));
+        assertEquals(1, coordinator.getCoalescedCount());
+        assertSame(requested.resolved.get(0), prefetched.resolved.get(0));
+    }
+
+    @Test
+    public void newerRequestCancelsSupersededExtraction() throws Exception {
+        resolver.block("a");
+        RecordingCallback first = new RecordingCallback(1);
+        RecordingCallback second = new RecordingCallback(1);
+        coordinator.request("a", first);
+        awaitResolving("a");
+        coordinator.request("b", second);
+
+        second.await();
+        assertEquals("b", second.resolved.get(0).videoId);
+        // nobody else waits for it, so the extraction is interrupted
+        assertTrue(resolver.getInterruption("a").await(5, TimeUnit.SECONDS));
+        assertEquals(0, first.count());
+        assertEquals(1, coordinator.getCancelledCount());
+    }
+
+    @Test
+    public void prefetchIsNeverSuperseded() throws Exception {
+        CountDownLatch gate = resolver.block("a");
+        RecordingCallback prefetched = new RecordingCallback(1);
+        RecordingCallback requested = new RecordingCallback(1);
+        RecordingCallback newer = new RecordingCallback(1);
+        coordinator.prefetch("a", prefetched);
+        // joins the prefetch, then gets superseded
+        coordinator.request("a", requested);
+        coordinator.request("b", newer);
+        newer.await();
+        gate.countDown();
+
+        prefetched.await();
+        assertEquals("a", prefetched.resolved.get(0).videoId);
+        assertEquals(1, resolver.getInterruption("a").getCount());
+        assertEquals(0, requested.count());
+    }
+
+    @Test
+    public void failedExtractionReportsError() throws Exception {
+        RecordingCallback callback = new RecordingCallback(1);
+        coordinator.request("missing", callback);
+        callback.await();
+        assertEquals(1, callback.errors.size());
+        assertEquals("missing", callback.errors.get(0));
+    }
+
+    @Test
+    public void rejectedRequestIsReportedThroughCallbackExecutor() throws Exception {
+        final List<Runnable> posted = new ArrayList<>();
+        coordinator.shutdown();
+        coordinator = new ExtractionCoordinator(resolver, null, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                synchronized (posted) {
+                    posted.add(command);
+                }
+            }
+        });
+        // 2 running and 8 pending fill the executor
+        for (int i = 0; i < 10; i++) {
+            resolver.block("p" + i);
+            coordinator.prefetch("p" + i, null);
+        }
+
+        RecordingCallback callback = new RecordingCallback(1);
+        coordinator.request("a", callback);
+        assertEquals(0, callback.count());
+        synchronized (posted) {
+            assertEquals(1, posted.size());
+            posted.get(0).run();
+        }
+        assertEquals("a", callback.errors.get(0));
+    }
+
+    /**
+     * Wait for the resolver to be called, so that cancelling the extraction interrupts it
+     */
+    private void awaitResolving(String mediaId) throws InterruptedException {
+        for (int i = 0; i < 500 && resolver.getResolveCount(mediaId) == 0; i++) Thread.sleep(10);
+        assertEquals(1, resolver.getResolveCount(mediaId));
+    }
+
+    private static class RecordingCallback implements ExtractionCoordinator.Callback {
+        final List<ResolvedMedia> resolved = new ArrayList<>();
+        final List<String> errors = new ArrayList<>();
+        private final CountDownLatch latch;
+
+        RecordingCallback(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public synchronized void onResolved(ResolvedMedia media) {
+            resolved.add(media);
+            latch.countDown();
+        }
+
+        @Override
+        public synchronized void onError(String mediaId) {
+            errors.add(mediaId);
+            latch.countDown();
+        }
+
+        synchronized int count() {
+            return resolved.size() + errors.size();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
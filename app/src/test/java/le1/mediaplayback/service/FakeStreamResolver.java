@@ -0,0 +1,86 @@
+package le1.mediaplayback.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link StreamResolver} answering from media registered in memory, instead of extracting them from YouTube.
+ * Unknown ids fail, and a resolution can be held until the test lets it go with {@link #block(String)}
+ */
+class FakeStreamResolver implements StreamResolver {
+    private final Map<String, ResolvedMedia> media = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> gates = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> resolveCounts = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> interruptions = new ConcurrentHashMap<>();
+
+    /**
+     * Register a media with the given streams
+     *
+     * @return The media that {@link #resolve(String)} returns for that id
+     */
+    ResolvedMedia put(String mediaId, ResolvedMedia.Stream... streams) {
+        ResolvedMedia m = new ResolvedMedia(mediaId, "title of " + mediaId, "channel", null, 180,
+                Arrays.asList(streams));
+        media.put(mediaId, m);
+        return m;
+    }
+
+    /**
+     * Hold every resolution of a media until the returned latch is counted down
+     */
+    CountDownLatch block(String mediaId) {
+        CountDownLatch gate = new CountDownLatch(1);
+        gates.put(mediaId, gate);
+        interruptions.put(mediaId, new CountDownLatch(1));
+        return gate;
+    }
+
+    /**
+     * @return Counted down when a blocked resolution of the media is interrupted, see {@link #block(String)}
+     */
+    CountDownLatch getInterruption(String mediaId) {
+        return interruptions.get(mediaId);
+    }
+
+    /**
+     * @return How many times the media was resolved, or started to be
+     */
+    int getResolveCount(String mediaId) {
+        AtomicInteger count = resolveCounts.get(mediaId);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public ResolvedMedia resolve(String mediaId) throws Exception {
+        resolveCounts.putIfAbsent(mediaId, new AtomicInteger());
+        resolveCounts.get(mediaId).incrementAndGet();
+        CountDownLatch gate = gates.get(mediaId);
+        if (gate != null) {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                interruptions.get(mediaId).countDown();
+                throw e;
+            }
+        }
+        ResolvedMedia m = media.get(mediaId);
+        if (m == null) throw new IOException("unknown media " + mediaId);
+        return m;
+    }
+
+    static ResolvedMedia.Stream audio(int itag, String ext, int bitrate) {
+        return new ResolvedMedia.Stream(itag, ext, -1, bitrate, "https://localhost/" + itag);
+    }
+
+    static ResolvedMedia.Stream video(int itag, String ext, int height) {
+        return new ResolvedMedia.Stream(itag, ext, height, -1, "https://localhost/" + itag);
+    }
+
+    static ResolvedMedia.Stream muxed(int itag, String ext, int height, int bitrate) {
+        return new ResolvedMedia.Stream(itag, ext, height, bitrate, "https://localhost/" + itag);
+    }
+}
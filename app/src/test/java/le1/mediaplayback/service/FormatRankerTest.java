@@ -0,0 +1,113 @@
+package le1.mediaplayback.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static le1.mediaplayback.service.FakeStreamResolver.audio;
+import static le1.mediaplayback.service.FakeStreamResolver.muxed;
+import static le1.mediaplayback.service.FakeStreamResolver.video;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link FormatRanker#select(ResolvedMedia, long, int)} on media served by a {@link FakeStreamResolver}
+ */
+public class FormatRankerTest {
+    private static final long FAST = 50000000;
+
+    private FakeStreamResolver resolver;
+
+    @Before
+    public void setUp() {
+        resolver = new FakeStreamResolver();
+        // the usual formats of a YouTube video
+        resolver.put("full",
+                audio(140, "m4a", 128), audio(249, "webm", 50), audio(251, "webm", 160),
+                video(160, "mp4", 144), video(134, "mp4", 360), video(135, "mp4", 480),
+                video(136, "mp4", 720), video(137, "mp4", 1080),
+                video(278, "webm", 144), video(243, "webm", 360), video(244, "webm", 480),
+                video(247, "webm", 720),
+                muxed(18, "mp4", 360, 96), muxed(22, "mp4", 720, 192));
+    }
+
+    @Test
+    public void prefersWebmWhenSupported() throws Exception {
+        FormatRanker.Selection selection = new FormatRanker(true, true).select(resolver.resolve("full"), FAST, 720);
+        assertEquals(251, selection.audio.itag);
+        assertEquals(247, selection.video.itag);
+    }
+
+    @Test
+    public void fallsBackToMp4WithoutWebmDecoders() throws Exception {
+        FormatRanker.Selection selection = new FormatRanker(false, false).select(resolver.resolve("full"), FAST, 720);
+        assertEquals(140, selection.audio.itag);
+        assertEquals(136, selection.video.itag);
+    }
+
+    @Test
+    public void limitsVideoToViewHeight() throws Exception {
+        FormatRanker ranker = new FormatRanker(true, true);
+        assertEquals(480, ranker.select(resolver.resolve("full"), FAST, 500).video.height);
+        // no view, the smallest video keeps the track playable once one is attached
+        assertEquals(278, ranker.select(resolver.resolve("full"), FAST, 0).video.itag);
+    }
+
+    @Test
+    public void limitsVideoToBandwidth() throws Exception {
+        // 750 kbps of budget, 160 for the audio: VP9 at 360p fits, 480p doesn't
+        FormatRanker.Selection selection = new FormatRanker(true, true).select(resolver.resolve("full"), 1000000, 1080);
+        assertEquals(251, selection.audio.itag);
+        assertEquals(243, selection.video.itag);
+    }
+
+    @Test
+    public void unknownBandwidthUsesDefaultEstimate() throws Exception {
+        FormatRanker ranker = new FormatRanker(true, true);
+        ResolvedMedia media = resolver.resolve("full");
+        assertEquals(ranker.select(media, FormatRanker.DEFAULT_BITRATE_ESTIMATE, 1080).video.itag,
+                ranker.select(media, -1, 1080).video.itag);
+    }
+
+    @Test
+    public void lowBandwidthPicksSmallestStreams() throws Exception {
+        FormatRanker.Selection selection = new FormatRanker(false, false).select(resolver.resolve("full"), 10000, 1080);
+        assertEquals(140, selection.audio.itag);
+        assertEquals(160, selection.video.itag);
+    }
+
+    @Test
+    public void missingItagsDoNotBreakSelection() throws Exception {
+        // neither 140 nor 160, which used to be hard coded
+        resolver.put("webm only", audio(251, "webm", 160), video(247, "webm", 720));
+        FormatRanker.Selection selection = new FormatRanker(true, true).select(resolver.resolve("webm only"), FAST, 1080);
+        assertEquals(251, selection.audio.itag);
+        assertEquals(247, selection.video.itag);
+
+        resolver.put("audio only", audio(140, "m4a", 128));
+        selection = new FormatRanker(true, true).select(resolver.resolve("audio only"), FAST, 1080);
+        assertEquals(140, selection.audio.itag);
+        assertNull(selection.video);
+    }
+
+    @Test
+    public void fallsBackToMuxedStream() throws Exception {
+        resolver.put("muxed", muxed(18, "mp4", 360, 96), muxed(22, "mp4", 720, 192), video(137, "mp4", 1080));
+        FormatRanker.Selection selection = new FormatRanker(true, true).select(resolver.resolve("muxed"), FAST, 1080);
+        assertEquals(22, selection.audio.itag);
+        assertNull(selection.video);
+    }
+
+    @Test
+    public void nothingPlayable() throws Exception {
+        resolver.put("video only", video(137, "mp4", 1080));
+        assertNull(new FormatRanker(true, true).select(resolver.resolve("video only"), FAST, 1080));
+        // webm can't be decoded, so there is nothing left
+        resolver.put("webm only", audio(251, "webm", 160), muxed(43, "webm", 360, 128));
+        assertNull(new FormatRanker(false, false).select(resolver.resolve("webm only"), FAST, 1080));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void unknownMediaFails() throws Exception {
+        resolver.resolve("missing");
+    }
+}